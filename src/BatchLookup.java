@@ -0,0 +1,69 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the answers to a batch lookup at the peer that started it.
+ *
+ * The keys of a batch split up as they travel around the ring, and every branch sends back one response listing
+ * the keys it resolved. The lookup is complete once every key has been answered.
+ */
+public class BatchLookup {
+    private final int batch_id;
+    private final int files;
+    private final long started_at = System.currentTimeMillis();
+    // Owner of every file answered so far.
+    private final Map<Integer, Integer> owners = new HashMap<Integer, Integer>();
+    private int missing = 0;
+    // Files no owner was found for, they count as missing too.
+    private int unresolved = 0;
+    private long hops = 0;
+
+    /**
+     * Instantiates a lookup waiting for answers about the given number of files.
+     *
+     * @param batch_id
+     * @param files
+     */
+    public BatchLookup(int batch_id, int files) {
+        this.batch_id = batch_id;
+        this.files = files;
+    }
+
+    /**
+     * Records the answer for one file.
+     *
+     * @param file_name
+     * @param owner the peer that owns the file's key, -1 if the lookup could not reach it.
+     * @param hops number of hops it took to reach the owner.
+     * @param found true if the owner has the file and is sending it.
+     * @return true once every file of the batch has been answered.
+     */
+    public synchronized boolean add(int file_name, int owner, int hops, boolean found) {
+        if (this.owners.put(file_name, owner) == null) {
+            if (owner == -1) {
+                this.unresolved++;
+            } else {
+                this.hops += hops;
+            }
+            if (!found) {
+                this.missing++;
+            }
+        }
+        return this.owners.size() >= this.files;
+    }
+
+    /**
+     * Returns a one line summary of the lookup.
+     */
+    public synchronized String summary() {
+        Set<Integer> peers = new HashSet<Integer>(this.owners.values());
+        peers.remove(-1);
+        int resolved = this.owners.size() - this.unresolved;
+        return String.format("Batch %08x: %d files looked up in %d ms, %d found at %d peers, %d missing "
+                + "(%d unresolved), %.2f hops on average.", this.batch_id, this.files,
+                System.currentTimeMillis() - this.started_at, this.owners.size() - this.missing, peers.size(),
+                this.missing, this.unresolved, resolved == 0 ? 0.0 : (double) this.hops / resolved);
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * AIMD congestion window for a file transfer, in bytes. The window grows by one segment per ACK in slow start and
+ * by one segment per window in congestion avoidance. A loss halves it (fast retransmit) or resets it to one
+ * segment (timeout), at most once per window of data so a burst of losses only counts as one congestion event.
+ */
+public class CongestionWindow {
+    private static final int INITIAL_SEGMENTS = 4;
+
+    private final int mss;
+    private double cwnd;
+    private double ssthresh = Double.MAX_VALUE;
+    // Losses of segments sent before this offset belong to a window that has already been cut.
+    private long recovery_point = -1;
+
+    /**
+     * Instantiates a window in slow start.
+     *
+     * @param mss segment size in bytes.
+     */
+    public CongestionWindow(int mss) {
+        this.mss = mss;
+        this.cwnd = INITIAL_SEGMENTS * mss;
+    }
+
+    /**
+     * Opens the window for newly acknowledged data.
+     *
+     * @param bytes number of bytes acknowledged.
+     */
+    public synchronized void onAck(int bytes) {
+        if (this.cwnd < this.ssthresh) {
+            this.cwnd += bytes;
+        } else {
+            this.cwnd += (double) this.mss * bytes / this.cwnd;
+        }
+    }
+
+    /**
+     * Cuts the window after a loss, unless it was already cut for the window the lost segment was sent in.
+     *
+     * @param segment_offset offset of the lost segment.
+     * @param bytes_in_flight bytes sent but not yet acknowledged.
+     * @param next_offset offset of the next new segment, which ends the current window.
+     * @param timeout true if the loss was detected by a timeout rather than duplicate ACKs.
+     * @return true if the window was cut.
+     */
+    public synchronized boolean onLoss(long segment_offset, long bytes_in_flight, long next_offset,
+            boolean timeout) {
+        if (segment_offset < this.recovery_point) {
+            return false;
+        }
+        this.ssthresh = Math.max(bytes_in_flight / 2.0, 2.0 * this.mss);
+        this.cwnd = timeout ? this.mss : this.ssthresh;
+        this.recovery_point = next_offset;
+        return true;
+    }
+
+    /**
+     * Gets the congestion window in bytes.
+     * @return
+     */
+    public synchronized long getCwnd() {
+        return (long) this.cwnd;
+    }
+
+    /**
+     * Gets the slow start threshold in bytes, or Long.MAX_VALUE before the first loss.
+     * @return
+     */
+    public synchronized long getSsthresh() {
+        return this.ssthresh == Double.MAX_VALUE ? Long.MAX_VALUE : (long) this.ssthresh;
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.*;
+import java.net.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Long lived TCP connections to other peers for control messages, one per peer.
+ *
+ * Messages are single lines, so any number of them can share a connection and every thread sending to the same
+ * peer writes through the same socket. A connection that breaks is dropped and the message is sent again over a
+ * fresh one. The receiving side never writes back on these connections, so a watcher thread per connection
+ * waits for the end of stream to notice when the other peer has closed it, otherwise the first message after
+ * that would be lost.
+ */
+public class ConnectionPool {
+    private static final String threadName = "ConnectionWatcher";
+    // How long to wait for a peer to accept a connection, in milliseconds.
+    private static final int CONNECT_TIMEOUT = 2000;
+
+    private final Map<Integer, Connection> connections = new ConcurrentHashMap<Integer, Connection>();
+
+    /**
+     * Sends a single line message to the given peer, opening a connection if there is none yet.
+     *
+     * @param receiver id of the peer.
+     * @param msg the message without its trailing newline.
+     * @throws IOException if the peer cannot be reached.
+     */
+    public void send(int receiver, String msg) throws IOException {
+        byte[] line = (msg + "\n").getBytes();
+        Connection connection = this.connections.get(receiver);
+        if (connection != null) {
+            try {
+                connection.write(line);
+                return;
+            } catch (IOException e) {
+                // The connection went stale, retry once on a new one.
+                close(receiver, connection);
+            }
+        }
+        connection = connect(receiver);
+        try {
+            connection.write(line);
+        } catch (IOException e) {
+            close(receiver, connection);
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the connection to a peer that has left the network.
+     */
+    public void close(int receiver) {
+        Connection connection = this.connections.remove(receiver);
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes every connection.
+     */
+    public void closeAll() {
+        for (int receiver : this.connections.keySet()) {
+            close(receiver);
+        }
+    }
+
+    /**
+     * Returns the open connection to a peer, opening one if needed. Two threads racing to connect may both open
+     * one, in which case the loser is closed.
+     */
+    private Connection connect(int receiver) throws IOException {
+        Connection existing = this.connections.get(receiver);
+        if (existing != null && existing.isOpen()) {
+            return existing;
+        }
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress("localhost", cdht.getPort(receiver)), CONNECT_TIMEOUT);
+        Connection connection = new Connection(receiver, socket);
+        Connection raced = this.connections.putIfAbsent(receiver, connection);
+        if (raced != null) {
+            if (raced.isOpen()) {
+                connection.close();
+                return raced;
+            }
+            this.connections.put(receiver, connection);
+            raced.close();
+        }
+        connection.watch();
+        return connection;
+    }
+
+    private void close(int receiver, Connection connection) {
+        this.connections.remove(receiver, connection);
+        connection.close();
+    }
+
+    /**
+     * An open connection to one peer.
+     */
+    private class Connection implements Runnable {
+        private final int receiver;
+        private final Socket socket;
+        private final OutputStream out;
+        private volatile boolean open = true;
+
+        private Connection(int receiver, Socket socket) throws IOException {
+            this.receiver = receiver;
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+        }
+
+        /**
+         * Writes a whole line at once so lines from different threads never interleave.
+         */
+        private synchronized void write(byte[] line) throws IOException {
+            if (!this.open) {
+                throw new SocketException("Connection to peer " + this.receiver + " is closed");
+            }
+            this.out.write(line);
+            this.out.flush();
+        }
+
+        private boolean isOpen() {
+            return this.open;
+        }
+
+        private void watch() {
+            TaskScope.newThread(this, threadName, true).start();
+        }
+
+        /**
+         * Waits for the other side to close the connection.
+         */
+        public void run() {
+            try {
+                InputStream in = this.socket.getInputStream();
+                while (in.read() != -1) {
+                    // Nothing is ever sent back on a control connection.
+                }
+            } catch (IOException e) {
+                // Treated like the end of stream.
+            }
+            ConnectionPool.this.close(this.receiver, this);
+        }
+
+        private void close() {
+            this.open = false;
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+}
@@ -1,25 +1,152 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
-import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
 
 public class FileSenderUDP implements Runnable {
-    private static final String threadName = "PingSenderUDP";
+    private static final String threadName = "FileSenderUDP";
     private static final int SOCKET_TIMEOUT = 1000;
+    // Upper bound on how much of the file is mapped into memory at once.
+    private static final int MAP_REGION_LEN = 64 * 1024 * 1024;
+    // A segment is taken as lost, and retransmitted without waiting for its timeout, once a segment sent this
+    // many transmissions after it has been acknowledged.
+    private static final int DUP_ACK_THRESHOLD = 3;
+    // A transfer is abandoned when the receiver has not acknowledged anything for this many milliseconds, it
+    // has most likely gone away and will ask for the missing ranges again when it comes back.
+    private static final long RECEIVER_TIMEOUT = 30000;
+    // RTT estimates per receiving peer, shared by every transfer to that peer so short chunk transfers do not
+    // each start from the initial timeout.
+    private static final Map<Integer, RttEstimator> rtt_cache = new ConcurrentHashMap<Integer, RttEstimator>();
+    // Names of the files a peer holds, [FILE].pdf for its own and received_file_[FILE].pdf for received ones.
+    private static final Pattern LOCAL_FILE = Pattern.compile("(?:received_file_)?(\\d+)\\.pdf");
     private Thread t;
 
     private int MSS;
+    private int file_name;
     private int sending_peer;
     private float drop_prob;
-    private Instant time;
+    // Start of the program in epoch milliseconds, times in the transfer log are relative to it.
+    private long start_millis;
     private File file;
+    private RttEstimator rtt_estimator;
+
+    // Flow and congestion control state for the transfer.
+    private CongestionWindow congestion;
+    private long rwnd = cdht.RECEIVE_WINDOW;
+    private long bytes_in_flight = 0;
+    private long next_offset;
+    // Transmissions so far, and the latest transmission that has been acknowledged.
+    private long transmissions = 0;
+    private long highest_acked = -1;
+    private long last_ack;
+
+    // Send engine state, reused for every segment of the transfer.
+    private DatagramChannel channel;
+    private Selector selector;
+    private FileChannel file_channel;
+    private MappedByteBuffer mapped_region;
+    private long mapped_start = -1;
+    private long mapped_end = -1;
+    private final ByteBuffer header_buffer = ByteBuffer.allocateDirect(cdht.TRANSFER_HEADER_LEN);
+    private final ByteBuffer ack_buffer = ByteBuffer.allocate(TransferHeader.MAX_ACK_LEN);
+    private final ByteBuffer[] packet = new ByteBuffer[2];
+    private final CRC32C crc = new CRC32C();
+    private final int session_id;
+    // Range of the file to send, the whole file unless this sender serves one chunk of a swarm download.
+    private final long range_start;
+    private final long range_len;
+    // Ranges the receiver already holds from an earlier, interrupted transfer, or null.
+    private final RangeSet received;
 
     public FileSenderUDP(int file_name, int sending_peer, int MSS, float drop_prob, Instant start_time) {
+        this(file_name, sending_peer, MSS, drop_prob, start_time, null);
+    }
+
+    /**
+     * Instantiates a sender that resumes an interrupted transfer, sending only the ranges the receiver is missing.
+     *
+     * @param received ranges the receiver already holds, or null to send the whole file.
+     */
+    public FileSenderUDP(int file_name, int sending_peer, int MSS, float drop_prob, Instant start_time,
+            RangeSet received) {
+        this(file_name, sending_peer, MSS, drop_prob, start_time, ThreadLocalRandom.current().nextInt(), 0, -1,
+                received);
+    }
+
+    /**
+     * Instantiates a sender for part of a file.
+     *
+     * @param session_id session the requesting peer registered for the download.
+     * @param range_start offset of the first byte to send.
+     * @param range_len number of bytes to send, or -1 to send up to the end of the file.
+     */
+    public FileSenderUDP(int file_name, int sending_peer, int MSS, float drop_prob, Instant start_time,
+            int session_id, long range_start, long range_len) {
+        this(file_name, sending_peer, MSS, drop_prob, start_time, session_id, range_start, range_len, null);
+    }
+
+    private FileSenderUDP(int file_name, int sending_peer, int MSS, float drop_prob, Instant start_time,
+            int session_id, long range_start, long range_len, RangeSet received) {
+        this.file_name = file_name;
         this.sending_peer = sending_peer;
         this.MSS = MSS;
         this.drop_prob = drop_prob;
-        this.file = new File("./" + file_name + ".pdf");
-        this.time = start_time;
+        this.file = localCopy(file_name);
+        this.start_millis = start_time.toEpochMilli();
+        this.session_id = session_id;
+        this.range_start = range_start;
+        this.range_len = range_len;
+        this.received = received;
+    }
+
+    /**
+     * Returns the local copy of a file: the original if this peer stores it, otherwise a copy received earlier.
+     *
+     * @param file_name
+     * @return the file, or null if this peer has no copy.
+     */
+    public static File localCopy(int file_name) {
+        File original = new File("./" + file_name + ".pdf");
+        if (original.exists()) {
+            return original;
+        }
+        File received = new File("./" + TransferSession.outputName(file_name));
+        return received.exists() ? received : null;
+    }
+
+    /**
+     * Returns the name of every file this peer holds a copy of, original or received, in ascending order.
+     */
+    public static List<Integer> localFiles() {
+        TreeSet<Integer> files = new TreeSet<Integer>();
+        String[] names = new File(".").list();
+        for (String name : names == null ? new String[0] : names) {
+            Matcher matcher = LOCAL_FILE.matcher(name);
+            if (matcher.matches()) {
+                files.add(Integer.parseInt(matcher.group(1)));
+            }
+        }
+        return new ArrayList<Integer>(files);
     }
 
     public void run() {
@@ -27,127 +154,100 @@ public class FileSenderUDP implements Runnable {
     }
 
     /**
-     * Starts the thread.
+     * Starts the thread in the given scope, closing the scope interrupts the transfer.
      */
-    public void start() {
+    public void start(TaskScope scope) {
         if (this.t == null) {
-            this.t = new Thread(this, threadName);
-            this.t.start();
+            this.t = scope.fork(this, threadName);
         }
     }
 
     private void beginFileTransfer() {
-        System.out.println("We now start sending the file .....");
-        try {
-            // For writing transmission data to a log.
-            PrintWriter sender_log = new PrintWriter("responding_log.txt");
-
-            // Setup networking variables
-            InetAddress ip = InetAddress.getLocalHost();
-            int port = cdht.getPort(this.sending_peer);
-            DatagramSocket socket = new DatagramSocket();
-            socket.setSoTimeout(SOCKET_TIMEOUT);
-
-            // Create buffer to send file data (dynamically allocated based on MSS size)
-            byte[] send_buffer = null;
-            // Create buffer to receive acks.
-            byte[] rcv_buffer = new byte[cdht.TRANSFER_HEADER_LEN];
-            // Create buffer for storing header data.
-            byte[] header_data; 
-            // Stores how much of the file has left to be read.
-            long file_len = this.file.length();
-            // Stores the current amount of data read for Sequence numbers.
-            int seq_num = 1;
-            // Flag for indicating whether we have reached the end of the file.
-            int eof_flag = 0;
-            // Flag for indicating whether we are retransmitting a packet.
-            int retrans_flag = 0;
-
-            // Get a ByteStream from the File.
-            ByteArrayInputStream header_data_stream;
-            BufferedInputStream file_data_stream = new BufferedInputStream(new FileInputStream(this.file));
-            
-            long size = MSS;
-            // Loop until the file length is zero or until we have finished retransmitting a lost packet.
-            while (file_len > 0 || retrans_flag == 1) {
-                Duration time_diff = Duration.between(this.time, Instant.now());
-                // If the packet is not a retransmission, do not write any extra data to the buffer.
-                if (retrans_flag == 0) {
-                    
-                    // Send MSS bytes of data if the filesize is large enough, otherwise send the remainder of the file.
-                    if (file_len < MSS) {
-                        size = file_len;
-                        eof_flag = 1;
-                    } else {
-                        size = MSS;
-                    }
+        // Chunks of a swarm download are quiet.
+        boolean whole_file = this.range_start == 0 && this.range_len == -1;
+        if (whole_file) {
+            System.out.println("We now start sending the file .....");
+        }
+        // Setup networking variables. The channel is connected so segments can be sent with gathering writes.
+        InetSocketAddress receiver = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                cdht.getPort(this.sending_peer));
+        // The channels are closed however the transfer ends.
+        try (DatagramChannel channel = DatagramChannel.open();
+                Selector selector = Selector.open();
+                FileChannel file_channel = openFile()) {
+            this.channel = channel;
+            this.selector = selector;
+            this.file_channel = file_channel;
+            this.channel.connect(receiver);
+            this.channel.configureBlocking(false);
+            this.channel.register(this.selector, SelectionKey.OP_READ);
 
-                    // Create packet header
-                    header_data = createPacketHeader(seq_num, (int) size, eof_flag);
-                    // Time between end of program and now.
-                    sender_log.println(cdht.write_log_text("snd", time_diff.toMillis(), seq_num, (int) size, 0));
-
-                    // Reduce file size by packet size.
-                    file_len -= size;
-                    // Increase the amount of file data read to be sent in the packet header.
-                    seq_num += size;
-
-                    // Create a byte array input stream for the packet header.
-                    header_data_stream = new ByteArrayInputStream(header_data);
-
-                    // Read in the header to first TRANSFER_HEADER_LEN bytes then read in the rest from the file stream.
-                    send_buffer = new byte[cdht.TRANSFER_HEADER_LEN + (int) size];
-                    header_data_stream.read(send_buffer, 0, cdht.TRANSFER_HEADER_LEN);
-                    file_data_stream.read(send_buffer, cdht.TRANSFER_HEADER_LEN, (int) size);
-                    header_data_stream.close();
-                } else {
-                    sender_log.println(cdht.write_log_text("RTX", time_diff.toMillis(), seq_num, (int) size, 0));
-                }
+            // The retransmission timeout adapts to the RTT measured to the receiving peer.
+            this.rtt_estimator = rtt_cache.computeIfAbsent(this.sending_peer,
+                    k -> new RttEstimator(SOCKET_TIMEOUT, cdht.MIN_RTO, cdht.MAX_RTO));
+            this.congestion = new CongestionWindow(MSS);
+
+            // The ranges still to be sent: the requested range minus whatever the receiver already holds.
+            long file_size = this.file_channel.size();
+            long range_end = this.range_len == -1 ? file_size : Math.min(file_size, this.range_start + this.range_len);
+            List<long[]> ranges = this.received == null
+                    ? Collections.singletonList(new long[] { this.range_start, range_end })
+                    : this.received.missing(this.range_start, range_end);
+            int range_index = 0;
+            // Offset in the file of the next new segment.
+            this.next_offset = ranges.isEmpty() ? range_end : ranges.get(0)[0];
+            // Segments that have been sent but not yet acknowledged, ordered by offset.
+            TreeMap<Long, Segment> in_flight = new TreeMap<Long, Segment>();
+            this.last_ack = System.currentTimeMillis();
+
+            // Loop until every range has been read and every segment in flight has been acknowledged.
+            while ((range_index < ranges.size() || !in_flight.isEmpty()) && !Thread.currentThread().isInterrupted()) {
+                // Fill the send window with new segments.
+                while (range_index < ranges.size()
+                        && windowHasRoom(in_flight, (int) Math.min(ranges.get(range_index)[1] - this.next_offset, MSS))) {
+                    // Send MSS bytes of data if the range is large enough, otherwise send the remainder of the range.
+                    int size = (int) Math.min(ranges.get(range_index)[1] - this.next_offset, MSS);
+                    short flags = this.next_offset + size == file_size ? TransferHeader.FLAG_EOF : 0;
 
-                // Randomly drop the packet, otherwise send it.
-                double rand = Math.random();
-                if (rand > this.drop_prob) {
-                    retrans_flag = 0;
-                    DatagramPacket pkt = new DatagramPacket(send_buffer, send_buffer.length, ip, port);
-                    socket.send(pkt);
-                } else {
-                    if (retrans_flag == 1) {
-                        sender_log.println(cdht.write_log_text("RTX/Drop", time_diff.toMillis(), seq_num, (int) size, 0));
-                    } else {
-                        sender_log.println(cdht.write_log_text("Drop", time_diff.toMillis(), seq_num, (int) size, 0));
+                    Segment segment = new Segment(this.next_offset, size, flags);
+                    in_flight.put(this.next_offset, segment);
+                    this.bytes_in_flight += size;
+                    transmitSegment(segment);
+
+                    // Advance the offset, moving on to the next range once this one has been read.
+                    this.next_offset += size;
+                    if (this.next_offset >= ranges.get(range_index)[1] && ++range_index < ranges.size()) {
+                        this.next_offset = ranges.get(range_index)[0];
                     }
                 }
-               
-                try {
-                    // Wait for an acknowledgement packet from the receiver.
-                    DatagramPacket ack_packet = new DatagramPacket(rcv_buffer, rcv_buffer.length);
-                    socket.receive(ack_packet);
-                    String ack_response = new String(ack_packet.getData());
-                    String[] ack_data = ack_response.trim().split(" ");
-                    
-                    // Reading in num_bytes_sent and ack number from receivers ack.
-                    int num_bytes_sent = Integer.parseInt(ack_data[2]);
-                    int ack_num = Integer.parseInt(ack_data[1]);
-
-                    // If we did not receive an "ACK" Continue waiting for an ack.
-                    while (!ack_data[0].equals("ACK")) {
-                        socket.receive(ack_packet);
-                        ack_response = new String(ack_packet.getData());
-                        ack_data = ack_response.trim().split(" ");
-                    }
-                    sender_log.println(cdht.write_log_text("rcv", time_diff.toMillis(), 0, num_bytes_sent, ack_num));
-                } catch (SocketTimeoutException e) {
-                    // On timeout set the retransmission flag so we know to retransmit.
-                    retrans_flag = 1;
+
+                // Wait for acknowledgements until the oldest outstanding segment times out.
+                if (this.selector.select(nextTimeout(in_flight)) > 0) {
+                    this.selector.selectedKeys().clear();
+                    receiveAcks(in_flight);
+                }
+                if (System.currentTimeMillis() - this.last_ack > RECEIVER_TIMEOUT) {
+                    break;
                 }
+                retransmitExpired(in_flight);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                System.out.println("Sending of file " + this.file_name + " to peer " + this.sending_peer
+                        + " stopped.");
+            } else if (!in_flight.isEmpty()) {
+                System.out.println("Peer " + this.sending_peer + " stopped responding, sending of file "
+                        + this.file_name + " abandoned.");
+            } else if (whole_file) {
+                System.out.println("The file is sent.");
             }
-            // Close all streams and the UDP socket.
-            System.out.println("The file is sent.");
-            file_data_stream.close();
-            sender_log.close();
-            socket.close();
         } catch (UnknownHostException e1) {
             return;
+        } catch (NoSuchFileException e) {
+            System.err.println("File " + this.file_name + " is not stored here.");
+            return;
+        } catch (ClosedByInterruptException e) {
+            System.out.println("Sending of file " + this.file_name + " to peer " + this.sending_peer + " stopped.");
+            return;
         } catch (FileNotFoundException e) {
             e.printStackTrace();
             return;
@@ -158,18 +258,270 @@ public class FileSenderUDP implements Runnable {
     }
 
     /**
-     * Packet header format:
-     * 
-     * [UDP MSG TYPE=FS] [SEQ_NUM] [NUM_SENT_BYTES (Sent Bytes)] [EOF = 0 => not the end of file.]
-     * @param curr_len
-     * @return byte array for the header.
+     * Opens the file being sent for reading.
+     *
+     * @throws NoSuchFileException if this peer holds no copy of the file.
+     */
+    private FileChannel openFile() throws IOException {
+        if (this.file == null) {
+            throw new NoSuchFileException(this.file_name + ".pdf");
+        }
+        return FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Drains every ACK waiting on the channel. Corrupt packets and ACKs for other sessions are ignored.
+     *
+     * Every ACK updates the receive window and releases each segment in flight below its cumulative ACK or inside
+     * one of its SACK blocks. Once all pending ACKs are read, the holes they reveal are retransmitted.
+     *
+     * @param in_flight unacknowledged segments.
+     */
+    private void receiveAcks(TreeMap<Long, Segment> in_flight) throws IOException {
+        this.ack_buffer.clear();
+        while (this.channel.read(this.ack_buffer) > 0) {
+            int len = this.ack_buffer.position();
+            this.ack_buffer.clear();
+            if (!TransferHeader.isValid(this.ack_buffer, len, this.crc)
+                    || TransferHeader.type(this.ack_buffer) != TransferHeader.TYPE_ACK
+                    || TransferHeader.sessionId(this.ack_buffer) != this.session_id) {
+                continue;
+            }
+            long acked_offset = TransferHeader.offset(this.ack_buffer);
+            int num_bytes_sent = TransferHeader.length(this.ack_buffer);
+            long cumulative = TransferHeader.cumulativeAck(this.ack_buffer);
+            this.rwnd = TransferHeader.receiveWindow(this.ack_buffer);
+            this.last_ack = System.currentTimeMillis();
+
+            // Only the segment that triggered the ACK gives an RTT sample, the others were acknowledged earlier
+            // by ACKs that were lost or are just being reported again.
+            Segment trigger = in_flight.get(acked_offset);
+            if (trigger != null && trigger.size == num_bytes_sent) {
+                sampleRtt(trigger);
+            }
+            int acked = release(in_flight, Long.MIN_VALUE, cumulative);
+            for (int i = 0; i < TransferHeader.sackBlocks(this.ack_buffer); i++) {
+                acked += release(in_flight, TransferHeader.sackStart(this.ack_buffer, i),
+                        TransferHeader.sackEnd(this.ack_buffer, i));
+            }
+            if (acked > 0) {
+                TransferLog.RESPONDING.packet(TransferLog.RCV, elapsedMillis(), 0, num_bytes_sent, cumulative + 1);
+            }
+        }
+        repairHoles(in_flight);
+    }
+
+    /**
+     * Removes the segments in flight that lie entirely within [start, end) and opens the congestion window for
+     * them. The empty segment an empty file is sent as is released once end reaches its offset.
+     *
+     * @param in_flight unacknowledged segments.
+     * @return number of segments acknowledged.
+     */
+    private int release(TreeMap<Long, Segment> in_flight, long start, long end) {
+        int acked = 0;
+        Iterator<Segment> it = in_flight.subMap(start, true, end, true).values().iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment.offset + segment.size > end) {
+                break;
+            }
+            it.remove();
+            this.highest_acked = Math.max(this.highest_acked, segment.transmission);
+            this.bytes_in_flight -= segment.size;
+            this.congestion.onAck(segment.size);
+            acked++;
+        }
+        return acked;
+    }
+
+    /**
+     * Retransmits every segment the receiver has skipped over, that is every segment with a transmission at least
+     * DUP_ACK_THRESHOLD older than the latest acknowledged one. Going by transmission order rather than offset
+     * means other senders filling the same session and lost retransmissions are handled alike: a retransmission
+     * is only taken as lost again once segments sent after it are acknowledged. The first hole of a window cuts
+     * the congestion window.
+     *
+     * @param in_flight unacknowledged segments.
+     */
+    private void repairHoles(TreeMap<Long, Segment> in_flight) throws IOException {
+        for (Segment segment : in_flight.values()) {
+            if (segment.transmission + DUP_ACK_THRESHOLD > this.highest_acked) {
+                continue;
+            }
+            if (this.congestion.onLoss(segment.offset, this.bytes_in_flight, this.next_offset, false)) {
+                logWindow(TransferLog.FAST);
+            }
+            segment.retransmitted = true;
+            transmitSegment(segment);
+        }
+    }
+
+    /**
+     * Returns true if a new segment of the given size may be sent. It must fall within WINDOW_SIZE segments of the
+     * oldest unacknowledged one, and the bytes in flight must stay within both the congestion window and the
+     * receiver's advertised window. One segment is always allowed when nothing is in flight so a closed receive
+     * window keeps being probed.
+     *
+     * @param in_flight unacknowledged segments.
+     * @param size size of the next new segment.
+     * @return boolean.
+     */
+    private boolean windowHasRoom(TreeMap<Long, Segment> in_flight, int size) {
+        if (in_flight.isEmpty()) {
+            return true;
+        }
+        if (this.next_offset - in_flight.firstKey() >= (long) cdht.WINDOW_SIZE * MSS) {
+            return false;
+        }
+        return this.bytes_in_flight + size <= Math.min(this.congestion.getCwnd(), this.rwnd);
+    }
+
+    /**
+     * Writes the congestion control state to the transfer log after the window has been cut.
+     */
+    private void logWindow(byte event) {
+        TransferLog.RESPONDING.window(event, elapsedMillis(), this.congestion.getCwnd(),
+                this.congestion.getSsthresh(), this.rwnd, this.bytes_in_flight);
+    }
+
+    /**
+     * Sends a segment, randomly dropping it with probability drop_prob, and logs the event. The payload is
+     * written straight from the mapped file together with the reusable header buffer in one gathering write,
+     * so retransmissions simply re-read the same region of the file.
+     *
+     * @param segment the segment to send.
+     */
+    private void transmitSegment(Segment segment) throws IOException {
+        long now = elapsedMillis();
+        TransferLog.RESPONDING.packet(segment.retransmitted ? TransferLog.RTX : TransferLog.SND, now,
+                segment.offset + 1, segment.size, 0);
+
+        segment.transmission = this.transmissions++;
+        segment.sent_at = System.nanoTime();
+        segment.deadline = System.currentTimeMillis() + this.rtt_estimator.getRto(segment.timeouts);
+        Metrics.SEGMENTS_SENT.increment();
+        if (segment.retransmitted) {
+            Metrics.SEGMENTS_RETRANSMITTED.increment();
+        }
+        if (Math.random() > this.drop_prob) {
+            this.packet[1] = payload(segment.offset, segment.size);
+            this.packet[0] = TransferHeader.write(this.header_buffer, TransferHeader.TYPE_DATA, segment.flags,
+                    this.session_id, this.file_name, segment.offset, segment.size, this.packet[1], this.crc);
+            this.channel.write(this.packet);
+        } else {
+            Metrics.SEGMENTS_DROPPED.increment();
+            TransferLog.RESPONDING.packet(segment.retransmitted ? TransferLog.RTX_DROP : TransferLog.DROP, now,
+                    segment.offset + 1, segment.size, 0);
+        }
+    }
+
+    /**
+     * Returns the mapped file contents for the given range, positioned and limited to exactly that range. When a
+     * segment falls outside the current mapping, a new region is mapped starting at that segment.
+     *
+     * @param offset offset of the first byte in the file.
+     * @param size number of bytes.
+     * @return the mapped buffer for the range.
+     */
+    private ByteBuffer payload(long offset, int size) throws IOException {
+        if (offset < this.mapped_start || offset + size > this.mapped_end) {
+            long len = Math.min(Math.max(MAP_REGION_LEN, size), this.file_channel.size() - offset);
+            this.mapped_region = this.file_channel.map(FileChannel.MapMode.READ_ONLY, offset, len);
+            this.mapped_start = offset;
+            this.mapped_end = offset + len;
+        }
+        int position = (int) (offset - this.mapped_start);
+        this.mapped_region.limit(position + size).position(position);
+        return this.mapped_region;
+    }
+
+    /**
+     * Retransmits only the segments whose acknowledgement has not arrived before their RTO expired. Each
+     * segment backs off exponentially on its own so one lossy segment does not slow down the rest.
+     *
+     * @param in_flight unacknowledged segments.
+     */
+    private void retransmitExpired(TreeMap<Long, Segment> in_flight) throws IOException {
+        long now = System.currentTimeMillis();
+        for (Segment segment : in_flight.values()) {
+            if (now >= segment.deadline) {
+                if (this.congestion.onLoss(segment.offset, this.bytes_in_flight, this.next_offset, true)) {
+                    logWindow(TransferLog.TIMEOUT);
+                }
+                segment.retransmitted = true;
+                segment.timeouts++;
+                TransferLog.RESPONDING.rtt(TransferLog.RTO, elapsedMillis(), -1, this.rtt_estimator.getSrtt(),
+                        this.rtt_estimator.getRttvar(), this.rtt_estimator.getRto(segment.timeouts));
+                transmitSegment(segment);
+            }
+        }
+    }
+
+    /**
+     * Feeds the round trip time of an acknowledged segment to the RTO estimator. Following Karn's rule, segments
+     * that were retransmitted are skipped since we cannot tell which copy the ACK belongs to.
+     *
+     * @param segment the segment that was just acknowledged.
+     */
+    private void sampleRtt(Segment segment) {
+        if (segment.retransmitted) {
+            return;
+        }
+        double sample = (System.nanoTime() - segment.sent_at) / 1e6;
+        this.rtt_estimator.addSample(sample);
+        // The ACKs measure the RTT to the receiver too, share it with routing.
+        LatencyTable.sample(this.sending_peer, sample);
+        TransferLog.RESPONDING.rtt(TransferLog.RTT, elapsedMillis(), sample, this.rtt_estimator.getSrtt(),
+                this.rtt_estimator.getRttvar(), this.rtt_estimator.getRto());
+    }
+
+    /**
+     * Returns how long to wait for an ACK before the earliest outstanding segment expires.
+     *
+     * @param in_flight unacknowledged segments.
+     * @return timeout in milliseconds, at least 1 so the selector never blocks indefinitely.
+     */
+    private long nextTimeout(TreeMap<Long, Segment> in_flight) {
+        long earliest = Long.MAX_VALUE;
+        for (Segment segment : in_flight.values()) {
+            earliest = Math.min(earliest, segment.deadline);
+        }
+        if (earliest == Long.MAX_VALUE) {
+            return this.rtt_estimator.getRto();
+        }
+        long remaining = earliest - System.currentTimeMillis();
+        return Math.max(1, remaining);
+    }
+
+    /**
+     * Time between the start of the program and now, used for the transfer log.
+     * @return
      */
-    private byte[] createPacketHeader(int seq_num, int num_bytes_sent, int end_of_file) {
-        String header = "FS " + seq_num + " " + num_bytes_sent + " " + end_of_file;
-        ByteArrayInputStream bais = new ByteArrayInputStream(header.getBytes());
-        byte[] header_buf = new byte[cdht.TRANSFER_HEADER_LEN];
-        bais.read(header_buf, 0, cdht.TRANSFER_HEADER_LEN);
-        return header_buf;
+    private long elapsedMillis() {
+        return System.currentTimeMillis() - this.start_millis;
+    }
+
+    /**
+     * A segment that has been sent and is waiting for its acknowledgement. Only its position in the file is kept,
+     * the data is read from the mapped file again whenever it is (re)transmitted.
+     */
+    private static class Segment {
+        private final long offset;
+        private final int size;
+        private final short flags;
+        // Time of the last transmission in nanoseconds and when it expires in milliseconds.
+        private long sent_at;
+        private long deadline;
+        private boolean retransmitted = false;
+        // Number of the segment's latest transmission, see repairHoles.
+        private long transmission;
+        private int timeouts = 0;
+
+        private Segment(long offset, int size, short flags) {
+            this.offset = offset;
+            this.size = size;
+            this.flags = flags;
+        }
     }
-    
 }
\ No newline at end of file
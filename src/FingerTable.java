@@ -0,0 +1,188 @@
+import java.util.Arrays;
+
+/**
+ * Chord finger table of a peer. Finger i points to the first peer at or after (peer + 2^i) on the ring, so a
+ * lookup can jump at least half of the remaining distance to its key in every hop and reaches the owner in
+ * O(log N) hops instead of walking the ring one successor at a time.
+ *
+ * Every finger starts out as the first successor, which is always a correct if slow choice. The fix-fingers
+ * thread refreshes one finger every FIX_INTERVAL milliseconds by looking up the successor of its start.
+ *
+ * Where RTTs to the fingers and successors have been measured, routing weighs the progress a hop makes toward
+ * the key against how far away the peer is, so a nearby peer that gets almost as close is preferred over a
+ * distant one.
+ */
+public class FingerTable implements Runnable {
+    private static final String threadName = "FixFingers";
+    // One finger for every bit of the identifier space.
+    private static final int BITS = IdSpace.BITS;
+    // How often a finger is refreshed, in milliseconds (override with -Dcdht.fix_fingers=N).
+    private static final long FIX_INTERVAL = Long.getLong("cdht.fix_fingers", 500);
+    private Thread t;
+
+    private cdht peer;
+    private final int[] fingers = new int[BITS];
+    private int next_finger = 0;
+    private volatile boolean shutdown = false;
+
+    /**
+     * Instantiates a finger table pointing every finger at the peer's first successor.
+     *
+     * @param peer the peer owning the table.
+     */
+    public FingerTable(cdht peer) {
+        this.peer = peer;
+        for (int i = 0; i < BITS; i++) {
+            this.fingers[i] = peer.getFirstSuccessor();
+        }
+    }
+
+    /**
+     * Runs the fix-fingers loop.
+     */
+    public void run() {
+        while (!this.shutdown) {
+            try {
+                Thread.sleep(FIX_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            fixNextFinger();
+        }
+    }
+
+    /**
+     * Starts the thread.
+     */
+    public void start() {
+        if (this.t == null) {
+            this.t = new Thread(this, threadName);
+            this.t.setDaemon(true);
+            this.t.start();
+        }
+    }
+
+    /**
+     * Shuts down the thread.
+     */
+    public void shutdown() {
+        this.shutdown = true;
+    }
+
+    /**
+     * Refreshes the next finger in turn. Finger 0 is the first successor. A finger whose start falls before the
+     * first successor is the first successor too, otherwise its successor is looked up around the ring and the
+     * answer arrives later through set.
+     */
+    private void fixNextFinger() {
+        int i = this.next_finger;
+        this.next_finger = (this.next_finger + 1) % BITS;
+        int succ = this.peer.getFirstSuccessor();
+        int start = start(i);
+        if (i == 0 || inInterval(start, this.peer.getPeer(), succ, true)) {
+            set(i, succ);
+        } else {
+            this.peer.findFingerSuccessor(i, start);
+        }
+    }
+
+    /**
+     * Returns the start of finger i, (peer + 2^i) mod 2^BITS.
+     */
+    public int start(int i) {
+        return (this.peer.getPeer() + (1 << i)) % IdSpace.SIZE;
+    }
+
+    public synchronized int get(int i) {
+        return this.fingers[i];
+    }
+
+    public synchronized void set(int i, int id) {
+        this.fingers[i] = id;
+    }
+
+    /**
+     * Returns the next hop toward key among the fingers and successors that lie between this peer and key, or
+     * the first successor if there are none.
+     *
+     * Each candidate is scored by the estimated latency of the rest of the lookup: the RTT to the candidate plus
+     * a typical hop's RTT for every halving of the number of peers it still leaves before the key, which is about
+     * one Chord hop each. That number is the distance times the density of peers on the ring, estimated from how
+     * far the successor list reaches. Until any RTT has been measured this picks the closest preceding finger.
+     *
+     * @param key a file hash or peer id.
+     */
+    public int closestPrecedingFinger(int key) {
+        int[] fingers;
+        synchronized (this) {
+            fingers = this.fingers.clone();
+        }
+        int[] successors = this.peer.getSuccessors();
+        double hop = LatencyTable.mean();
+        // Peers per identifier, the successor list holds the next few peers on the ring.
+        int reach = successors.length == 0 ? IdSpace.SIZE
+                : Math.floorMod(successors[successors.length - 1] - this.peer.getPeer(), IdSpace.SIZE);
+        double density = successors.length / (double) Math.max(1, reach);
+        int best = -1;
+        double best_score = Double.MAX_VALUE;
+        int best_distance = Integer.MAX_VALUE;
+        for (int i = 0; i < fingers.length + successors.length; i++) {
+            int candidate = i < fingers.length ? fingers[i] : successors[i - fingers.length];
+            if (!inInterval(candidate, this.peer.getPeer(), key, false)) {
+                continue;
+            }
+            int distance = Math.floorMod(key - candidate, IdSpace.SIZE);
+            double rtt = LatencyTable.get(candidate);
+            double score = (rtt < 0 ? hop : rtt) + hop * (Math.log(distance * density + 1) / Math.log(2));
+            if (score < best_score || score == best_score && distance < best_distance) {
+                best = candidate;
+                best_score = score;
+                best_distance = distance;
+            }
+        }
+        return best == -1 ? this.peer.getFirstSuccessor() : best;
+    }
+
+    /**
+     * Returns the peers the fingers point at, without repeats.
+     */
+    public synchronized int[] peers() {
+        return Arrays.stream(this.fingers).distinct().toArray();
+    }
+
+    /**
+     * Points every finger at a departed or dead peer to replacement instead.
+     */
+    public synchronized void replace(int id, int replacement) {
+        for (int i = 0; i < BITS; i++) {
+            if (this.fingers[i] == id) {
+                this.fingers[i] = replacement;
+            }
+        }
+    }
+
+    /**
+     * Returns the table as [start: finger] pairs for the debug command.
+     */
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < BITS; i++) {
+            sb.append(i == 0 ? "" : " ").append(start(i)).append(':').append(this.fingers[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns true if x lies on the ring strictly after a and before b, or at b when inclusive is true. With
+     * a == b the interval is the whole ring apart from a itself.
+     */
+    public static boolean inInterval(int x, int a, int b, boolean inclusive) {
+        if (inclusive && x == b) {
+            return true;
+        }
+        if (a < b) {
+            return x > a && x < b;
+        }
+        return x > a || x < b;
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non-negative values, such as latencies or hop counts, in the style of an HDR histogram.
+ *
+ * Values below 8 have a bucket each, and every power of two above that is split into 8 equal buckets, so any
+ * value is reported within 12.5% while every long fits in under 500 buckets. Recording a value is a couple of
+ * shifts and an atomic increment, cheap enough for every ping and segment.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final String unit;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Instantiates an empty histogram.
+     *
+     * @param unit unit of the recorded values, shown in reports.
+     */
+    public Histogram(String unit) {
+        this.unit = unit;
+    }
+
+    /**
+     * Records a value, negative values count as 0.
+     *
+     * @param value
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        this.counts.incrementAndGet(index(value));
+        this.count.increment();
+        this.sum.add(value);
+        if (value > this.max.get()) {
+            this.max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public long count() {
+        return this.count.sum();
+    }
+
+    public double mean() {
+        long n = this.count.sum();
+        return n == 0 ? 0 : (double) this.sum.sum() / n;
+    }
+
+    public long max() {
+        return this.max.get();
+    }
+
+    /**
+     * Returns the value below which the given fraction of the recorded values fall, to within a bucket.
+     *
+     * @param fraction between 0 and 1.
+     */
+    public long percentile(double fraction) {
+        long n = this.count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                // The highest value the bucket holds, but never more than the largest value recorded.
+                return Math.min(this.max.get(), i + 1 < BUCKETS ? lowest(i + 1) - 1 : Long.MAX_VALUE);
+            }
+        }
+        return this.max.get();
+    }
+
+    /**
+     * Returns a one line summary of the distribution.
+     */
+    public String toString() {
+        return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d %s", count(), mean(), percentile(0.5),
+                percentile(0.9), percentile(0.99), max(), this.unit);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int sub_bucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub_bucket;
+    }
+
+    private static long lowest(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+}
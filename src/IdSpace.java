@@ -0,0 +1,54 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The identifier space of the ring: every peer id and file key is a position in [0, 2^BITS).
+ *
+ * The size of the space is set with -Dcdht.bits=m (8 by default, at most MAX_BITS). Files are placed with
+ * -Dcdht.hash=mod|sha1: mod keeps the original placement of file name mod 2^m, sha1 takes the leading m bits of
+ * the file name's SHA-1 digest, which spreads names that share a pattern, such as every name ending in the same
+ * digits, evenly around the ring. Every peer in the ring must be started with the same settings.
+ */
+public class IdSpace {
+    // Peer ids are limited by the ports they map to, so a larger space would leave most keys above the highest
+    // possible peer and wrap them all round to the lowest one.
+    public static final int MAX_BITS = 31 - Integer.numberOfLeadingZeros(65536 - cdht.DEFAULT_PORT);
+    public static final int BITS = Math.max(1, Math.min(MAX_BITS, Integer.getInteger("cdht.bits", 8)));
+    public static final int SIZE = 1 << BITS;
+    private static final boolean SHA1 = "sha1".equalsIgnoreCase(System.getProperty("cdht.hash", "mod"));
+
+    /**
+     * Returns the position of a file's key on the ring.
+     *
+     * @param file_name
+     */
+    public static int key(int file_name) {
+        if (!SHA1) {
+            return Math.floorMod(file_name, SIZE);
+        }
+        byte[] digest = sha1(Integer.toString(file_name));
+        // The first eight bytes of the digest, as an unsigned number reduced to the ring.
+        long prefix = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            prefix = prefix << 8 | (digest[i] & 0xff);
+        }
+        return (int) (prefix >>> (Long.SIZE - BITS));
+    }
+
+    /**
+     * Returns true if id is a valid position on the ring.
+     */
+    public static boolean contains(int id) {
+        return id >= 0 && id < SIZE;
+    }
+
+    private static byte[] sha1(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to provide SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Smoothed round trip times from this machine to other peers, used to prefer nearby peers when routing.
+ *
+ * Samples come from the pings sent to successors and fingers and from the segments of file transfers, which
+ * measure the RTT to the receiver as a side effect. The table is shared by every virtual node in the process
+ * since they all sit on the same machine.
+ */
+public class LatencyTable {
+    private static final Map<Integer, RttEstimator> estimators = new ConcurrentHashMap<Integer, RttEstimator>();
+
+    /**
+     * Adds a round trip time measured to a peer.
+     *
+     * @param peer_id
+     * @param rtt round trip time in milliseconds.
+     */
+    public static void sample(int peer_id, double rtt) {
+        estimators.computeIfAbsent(peer_id, k -> new RttEstimator(cdht.SOCKET_TIMEOUT_FREQ, 1, cdht.MAX_RTO))
+                .addSample(rtt);
+    }
+
+    /**
+     * Returns the smoothed round trip time to a peer in milliseconds, or -1 if it has not been measured.
+     */
+    public static double get(int peer_id) {
+        RttEstimator estimator = estimators.get(peer_id);
+        return estimator == null ? -1 : estimator.getSrtt();
+    }
+
+    /**
+     * Returns the mean round trip time over every measured peer, or 0 if none has been measured, taken as the
+     * cost of a typical hop.
+     */
+    public static double mean() {
+        double total = 0;
+        int n = 0;
+        for (RttEstimator estimator : estimators.values()) {
+            double srtt = estimator.getSrtt();
+            if (srtt >= 0) {
+                total += srtt;
+                n++;
+            }
+        }
+        return n == 0 ? 0 : total / n;
+    }
+
+    /**
+     * Forgets a peer that has left the ring.
+     */
+    public static void remove(int peer_id) {
+        estimators.remove(peer_id);
+    }
+
+    /**
+     * Returns the measured round trip times as [peer:ms] pairs for the debug command.
+     */
+    public static String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Integer, RttEstimator> entry : new TreeMap<Integer, RttEstimator>(estimators).entrySet()) {
+            sb.append(sb.length() == 0 ? "" : " ")
+                    .append(String.format("%d:%.2f", entry.getKey(), entry.getValue().getSrtt()));
+        }
+        return sb.toString();
+    }
+}
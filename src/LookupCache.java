@@ -0,0 +1,140 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which peer owns which part of the ring, so a peer that requests a file whose hash it has looked up
+ * before can send the request straight to the owner instead of routing it through the ring again.
+ *
+ * A lookup of hash h answered by peer p shows that p owns every key from h up to p, so entries are kept per owner
+ * and cover the widest such range seen. Entries expire TTL milliseconds after they were learned, and the least
+ * recently used entry is evicted once there are CAPACITY of them. Entries for a peer that leaves the ring are
+ * dropped as soon as we hear about it.
+ */
+public class LookupCache {
+    // Most owners remembered at once (override with -Dcdht.lookup_cache=N, 0 disables the cache).
+    private static final int CAPACITY = Integer.getInteger("cdht.lookup_cache", 64);
+    // How long an owner is trusted, in milliseconds (override with -Dcdht.lookup_ttl=N).
+    private static final long TTL = Long.getLong("cdht.lookup_ttl", 60000);
+
+    // Owner id to the range it was seen to own, in least recently used order.
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+    private long hits = 0;
+    private long misses = 0;
+    private long hops_saved = 0;
+
+    /**
+     * Returns the cached owner of a hash, counting the lookup as a hit or a miss.
+     *
+     * @param hash
+     * @return the owner, or -1 if it is not known.
+     */
+    public synchronized int get(int hash) {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = this.entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (now - entry.learned_at > TTL) {
+                it.remove();
+            } else if (entry.covers(hash)) {
+                // Touch the entry so it becomes the most recently used.
+                this.entries.get(entry.owner);
+                this.hits++;
+                this.hops_saved += Math.max(0, entry.hops - 1);
+                return entry.owner;
+            }
+        }
+        this.misses++;
+        return -1;
+    }
+
+    /**
+     * Records the owner of a hash from the answer to a lookup.
+     *
+     * @param hash
+     * @param owner the peer that answered.
+     * @param hops number of hops the lookup took.
+     */
+    public synchronized void put(int hash, int owner, int hops) {
+        if (CAPACITY <= 0) {
+            return;
+        }
+        Entry entry = this.entries.get(owner);
+        if (entry == null || System.currentTimeMillis() - entry.learned_at > TTL) {
+            this.entries.put(owner, new Entry(hash, owner, hops));
+        } else if (!entry.covers(hash)) {
+            // The owner's range reaches back at least as far as this hash.
+            entry.start = hash;
+            entry.hops = Math.max(entry.hops, hops);
+        }
+    }
+
+    /**
+     * Forgets a peer that has left the ring or is no longer reachable.
+     *
+     * @param peer
+     */
+    public synchronized void remove(int peer) {
+        this.entries.remove(peer);
+    }
+
+    /**
+     * Forgets the owners whose range a peer that has just joined now takes part of.
+     *
+     * @param peer
+     */
+    public synchronized void joined(int peer) {
+        this.entries.values().removeIf(entry -> entry.owner != peer && entry.covers(peer));
+    }
+
+    /**
+     * Forgets an owner that the request sent on a cache hit could not reach, counting the lookup as a miss
+     * instead since it goes the long way after all.
+     *
+     * @param owner
+     */
+    public synchronized void unreachable(int owner) {
+        Entry entry = this.entries.remove(owner);
+        if (entry != null) {
+            this.hits--;
+            this.misses++;
+            this.hops_saved -= Math.max(0, entry.hops - 1);
+        }
+    }
+
+    /**
+     * Returns the size and hit statistics of the cache for the debug command.
+     */
+    public synchronized String toString() {
+        return String.format("%d owners, %d hits, %d misses, %d hops saved", this.entries.size(), this.hits,
+                this.misses, this.hops_saved);
+    }
+
+    /**
+     * The keys from start up to owner on the ring, all owned by owner.
+     */
+    private static class Entry {
+        private final int owner;
+        private final long learned_at = System.currentTimeMillis();
+        private int start;
+        // Hops the lookup that found this owner took, each hit saves all but one of them.
+        private int hops;
+
+        private Entry(int start, int owner, int hops) {
+            this.start = start;
+            this.owner = owner;
+            this.hops = hops;
+        }
+
+        private boolean covers(int hash) {
+            if (hash == this.owner || hash == this.start) {
+                return true;
+            }
+            return this.start != this.owner && FingerTable.inInterval(hash, this.start, this.owner, true);
+        }
+    }
+}
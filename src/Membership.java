@@ -0,0 +1,215 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What a peer has heard about the other peers of the ring, spread SWIM style by piggybacking recent changes on
+ * the ping requests and responses it sends anyway.
+ *
+ * Every peer is known as joined, alive, suspected, dead or left, with the incarnation number it had at the time.
+ * A change is piggybacked on the next pings until it has been sent about 3 log2(N) times, which is enough for it
+ * to reach every peer of an N peer ring with high probability. A newer incarnation always wins, and at the same
+ * incarnation suspected beats alive and dead or left beat both. A peer that hears it is suspected or dead refutes
+ * it by raising its own incarnation and spreading that it is alive.
+ *
+ * Updates are written as [TYPE][PEER]:[INCARNATION], for example D12:0 for peer 12 being dead at incarnation 0.
+ */
+public class Membership {
+    public static final char JOIN = 'J';
+    public static final char ALIVE = 'A';
+    public static final char SUSPECT = 'S';
+    public static final char DEAD = 'D';
+    public static final char LEAVE = 'L';
+    // Most updates piggybacked on a single ping or response.
+    private static final int MAX_PIGGYBACK = 8;
+
+    private final int peer_id;
+    private int incarnation = 0;
+    // Latest state heard of every other peer.
+    private final Map<Integer, Update> states = new TreeMap<Integer, Update>();
+    // Updates still being spread, at most one per peer.
+    private final Map<Integer, Update> gossip = new LinkedHashMap<Integer, Update>();
+
+    /**
+     * A peer's state at an incarnation.
+     */
+    public static final class Update {
+        public final char type;
+        public final int peer_id;
+        public final int incarnation;
+        private int sent = 0;
+
+        private Update(char type, int peer_id, int incarnation) {
+            this.type = type;
+            this.peer_id = peer_id;
+            this.incarnation = incarnation;
+        }
+
+        public String toString() {
+            return "" + this.type + this.peer_id + ":" + this.incarnation;
+        }
+    }
+
+    /**
+     * Instantiates the membership view of a peer, which starts by announcing that it has joined.
+     *
+     * @param peer_id
+     * @param incarnation incarnation to join with, a peer rejoining after it left needs a newer one than before.
+     */
+    public Membership(int peer_id, int incarnation) {
+        this.peer_id = peer_id;
+        this.incarnation = incarnation;
+        spread(new Update(JOIN, peer_id, incarnation));
+    }
+
+    /**
+     * Returns true if a peer is last known to be dead or to have left.
+     *
+     * @param peer_id
+     */
+    public synchronized boolean isDown(int peer_id) {
+        Update known = this.states.get(peer_id);
+        return known != null && (known.type == DEAD || known.type == LEAVE);
+    }
+
+    /**
+     * Returns true if a peer is last known to be suspected.
+     *
+     * @param peer_id
+     */
+    public synchronized boolean isSuspected(int peer_id) {
+        Update known = this.states.get(peer_id);
+        return known != null && known.type == SUSPECT;
+    }
+
+    /**
+     * Records and spreads something this peer found out about another peer itself.
+     *
+     * @param type one of JOIN, ALIVE, SUSPECT, DEAD or LEAVE.
+     * @param peer_id
+     */
+    public synchronized void announce(char type, int peer_id) {
+        Update known = this.states.get(peer_id);
+        Update update = new Update(type, peer_id, known == null ? 0 : known.incarnation);
+        if (overrides(update, known)) {
+            this.states.put(peer_id, update);
+            spread(update);
+        }
+    }
+
+    /**
+     * Applies the updates piggybacked on a ping or response.
+     *
+     * @param updates updates as written by piggyback(), may be empty.
+     * @return the updates that changed what this peer knew, which the caller acts on.
+     */
+    public synchronized List<Update> apply(String updates) {
+        List<Update> changed = new ArrayList<Update>();
+        for (String text : updates.trim().split("\\s+")) {
+            Update update = parse(text);
+            if (update == null) {
+                continue;
+            }
+            if (update.peer_id == this.peer_id) {
+                // Someone thinks we have failed, prove them wrong with a newer incarnation.
+                if ((update.type == SUSPECT || update.type == DEAD) && update.incarnation >= this.incarnation) {
+                    this.incarnation = update.incarnation + 1;
+                    spread(new Update(ALIVE, this.peer_id, this.incarnation));
+                }
+                continue;
+            }
+            if (overrides(update, this.states.get(update.peer_id))) {
+                this.states.put(update.peer_id, update);
+                spread(update);
+                changed.add(update);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns the updates to piggyback on the next ping or response, the ones sent least often first, and counts
+     * them as sent once more.
+     *
+     * @return space separated updates, or an empty string if there is nothing to spread.
+     */
+    public synchronized String piggyback() {
+        List<Update> updates = new ArrayList<Update>(this.gossip.values());
+        updates.sort((a, b) -> Integer.compare(a.sent, b.sent));
+        int limit = retransmissions();
+        StringBuilder sb = new StringBuilder();
+        for (Update update : updates.subList(0, Math.min(MAX_PIGGYBACK, updates.size()))) {
+            sb.append(sb.length() == 0 ? "" : " ").append(update);
+            if (++update.sent >= limit) {
+                this.gossip.remove(update.peer_id);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the state of every peer heard of as [peer:state] pairs for the debug command.
+     */
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Update update : this.states.values()) {
+            sb.append(sb.length() == 0 ? "" : " ").append(update.peer_id).append(':').append(update.type);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Queues an update to be piggybacked, replacing any older update about the same peer.
+     */
+    private void spread(Update update) {
+        this.gossip.remove(update.peer_id);
+        this.gossip.put(update.peer_id, update);
+    }
+
+    /**
+     * Returns how many times each update is sent, about 3 log2(N) for the N peers heard of.
+     */
+    private int retransmissions() {
+        return 3 * (32 - Integer.numberOfLeadingZeros(this.states.size() + 1));
+    }
+
+    /**
+     * Returns true if update is newer than what was known before.
+     */
+    private static boolean overrides(Update update, Update known) {
+        if (known == null) {
+            return true;
+        }
+        if (update.incarnation != known.incarnation) {
+            return update.incarnation > known.incarnation;
+        }
+        return rank(update.type) > rank(known.type);
+    }
+
+    private static int rank(char type) {
+        switch (type) {
+            case SUSPECT:
+                return 1;
+            case DEAD:
+            case LEAVE:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    private static Update parse(String text) {
+        int colon = text.indexOf(':');
+        if (text.length() < 4 || colon < 2 || "JASDL".indexOf(text.charAt(0)) < 0) {
+            return null;
+        }
+        try {
+            return new Update(text.charAt(0), Integer.parseInt(text.substring(1, colon)),
+                    Integer.parseInt(text.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
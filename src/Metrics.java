@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms describing what the peers of this process are doing.
+ *
+ * Counters are LongAdders and histograms are Histograms, so the pings, segments and messages that record into
+ * them never contend on a single lock. The metrics are shared by every virtual node in the process. They can be
+ * read with the stats command, over JMX as cdht:type=Metrics, and from a snapshot written to
+ * -Dcdht.metrics_file (metrics_[PEER].txt by default, after the first peer of the process) every
+ * -Dcdht.metrics_interval milliseconds (60000 by default, 0 turns the snapshots off).
+ */
+public class Metrics {
+    private static final long SNAPSHOT_INTERVAL = Long.getLong("cdht.metrics_interval", 60000);
+
+    private static final Map<String, LongAdder> counters = new ConcurrentSkipListMap<String, LongAdder>();
+    private static final Map<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+    private static boolean started = false;
+
+    public static final LongAdder PINGS_SENT = counter("ping.sent");
+    public static final LongAdder PINGS_RECEIVED = counter("ping.received");
+    public static final LongAdder PING_RESPONSES = counter("ping.responses");
+    public static final Histogram PING_RTT = histogram("ping.rtt", "us");
+    public static final Histogram LOOKUP_HOPS = histogram("lookup.hops", "hops");
+    public static final Histogram LOOKUP_LATENCY = histogram("lookup.latency", "us");
+    public static final LongAdder SEGMENTS_SENT = counter("segment.sent");
+    public static final LongAdder SEGMENTS_RETRANSMITTED = counter("segment.retransmitted");
+    public static final LongAdder SEGMENTS_DROPPED = counter("segment.dropped");
+    public static final LongAdder TRANSFERS_RECEIVED = counter("transfer.received");
+    public static final LongAdder TRANSFER_BYTES = counter("transfer.bytes");
+    public static final Histogram TRANSFER_THROUGHPUT = histogram("transfer.throughput", "KB/s");
+
+    /**
+     * Returns the counter with the given name, creating it on first use.
+     *
+     * @param name
+     */
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it on first use.
+     *
+     * @param name
+     * @param unit unit of the recorded values.
+     */
+    public static Histogram histogram(String name, String unit) {
+        return histograms.computeIfAbsent(name, k -> new Histogram(unit));
+    }
+
+    /**
+     * Counts a TCP message received, by its type.
+     *
+     * @param type the two letter message type.
+     */
+    public static void message(String type) {
+        counter("tcp." + type).increment();
+    }
+
+    /**
+     * Publishes the metrics over JMX and starts writing snapshots, once per process however many virtual nodes
+     * it runs.
+     *
+     * @param peer_id the first peer of the process, which names the snapshot file.
+     */
+    public static synchronized void start(int peer_id) {
+        if (started) {
+            return;
+        }
+        started = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("cdht:type=Metrics"));
+        } catch (JMException e) {
+            System.err.println("Metrics are not available over JMX: " + e);
+        }
+        if (SNAPSHOT_INTERVAL > 0) {
+            String file = System.getProperty("cdht.metrics_file", "metrics_" + peer_id + ".txt");
+            TaskScope.newThread(() -> writeSnapshots(file), "MetricsSnapshot", true).start();
+        }
+    }
+
+    /**
+     * Returns every metric, one per line, in the form printed by the stats command.
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            sb.append(counter.getKey()).append(' ').append(counter.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            sb.append(histogram.getKey()).append(' ').append(histogram.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes a snapshot of the metrics every SNAPSHOT_INTERVAL milliseconds. Each snapshot replaces the last in
+     * one move, so readers never see a half written file.
+     */
+    private static void writeSnapshots(String file_name) {
+        Path file = Paths.get(file_name);
+        Path temp = Paths.get(file_name + ".tmp");
+        while (true) {
+            try {
+                Thread.sleep(SNAPSHOT_INTERVAL);
+                Files.write(temp, ("# " + Instant.now() + "\n" + report()).getBytes(StandardCharsets.UTF_8));
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Could not write metrics snapshot: " + e);
+            }
+        }
+    }
+
+    /**
+     * Exposes the registry over JMX.
+     */
+    private static final class Bean implements MetricsMXBean {
+        public Map<String, Long> getCounters() {
+            Map<String, Long> values = new LinkedHashMap<String, Long>();
+            for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+                values.put(counter.getKey(), counter.getValue().sum());
+            }
+            return values;
+        }
+
+        public Map<String, String> getHistograms() {
+            Map<String, String> values = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+                values.put(histogram.getKey(), histogram.getValue().toString());
+            }
+            return values;
+        }
+
+        public String getReport() {
+            return report();
+        }
+    }
+}
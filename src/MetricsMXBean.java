@@ -0,0 +1,21 @@
+import java.util.Map;
+
+/**
+ * Management interface the metrics are published through over JMX, under the name cdht:type=Metrics.
+ */
+public interface MetricsMXBean {
+    /**
+     * Returns every counter by name.
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * Returns a one line summary of every histogram by name.
+     */
+    Map<String, String> getHistograms();
+
+    /**
+     * Returns every metric in the form printed by the stats command.
+     */
+    String getReport();
+}
@@ -0,0 +1,101 @@
+/**
+ * Phi accrual failure detector for one peer (Hayashibara et al.), in the form used by Akka and Cassandra.
+ *
+ * Rather than counting missed pings, the detector keeps the intervals between the last WINDOW responses from the
+ * peer and turns the time since the latest one into a suspicion level phi: the peer would have answered by now
+ * with probability 1 - 10^-phi if it were alive. A peer whose responses are usually regular is suspected soon
+ * after it goes quiet, while one whose responses already arrive with a lot of jitter, as on a loaded machine, is
+ * given longer before it is suspected.
+ *
+ * The threshold is set with -Dcdht.phi=N (8 by default, about one false suspicion in 10^8) and the number of
+ * intervals kept with -Dcdht.phi_window=N (100 by default).
+ */
+public class PhiAccrualDetector {
+    public static final double THRESHOLD = Double.parseDouble(System.getProperty("cdht.phi", "8"));
+    public static final int WINDOW = Math.max(2, Integer.getInteger("cdht.phi_window", 100));
+    // Lower bound on the standard deviation of the intervals, so a peer that has always answered like clockwork
+    // is not suspected the moment a single response is a little late.
+    private static final double MIN_STD_DEVIATION = cdht.PING_FREQ / 4.0;
+    // A response may arrive up to a ping timeout after the ping interval and still be on time.
+    private static final double ACCEPTABLE_PAUSE = cdht.SOCKET_TIMEOUT_FREQ;
+    // How long a peer that has never answered is expected to take, it may still be starting up.
+    private static final double FIRST_RESPONSE = Math.max(cdht.PING_FREQ, 10000);
+
+    private final double[] intervals = new double[WINDOW];
+    private int count = 0;
+    private int next = 0;
+    private double sum = 0;
+    private double sum_squares = 0;
+    private boolean heard = false;
+    private long last_heard;
+
+    /**
+     * Instantiates a detector for a peer that has just been found. Until the peer has answered twice its responses
+     * are expected every ping interval, or within FIRST_RESPONSE of now for the first one.
+     *
+     * @param now time in milliseconds.
+     */
+    public PhiAccrualDetector(long now) {
+        this.last_heard = now;
+    }
+
+    /**
+     * Records a response from the peer.
+     *
+     * @param now time in milliseconds.
+     */
+    public synchronized void heartbeat(long now) {
+        if (this.heard) {
+            add(now - this.last_heard);
+        }
+        this.heard = true;
+        this.last_heard = now;
+    }
+
+    /**
+     * Returns the suspicion level of the peer at the given time, 0 just after a response and growing the longer
+     * the peer stays quiet.
+     *
+     * @param now time in milliseconds.
+     */
+    public synchronized double phi(long now) {
+        double mean = this.heard ? cdht.PING_FREQ : FIRST_RESPONSE;
+        double std_deviation = MIN_STD_DEVIATION;
+        if (this.count > 0) {
+            mean = this.sum / this.count;
+            double variance = Math.max(0, this.sum_squares / this.count - mean * mean);
+            std_deviation = Math.max(MIN_STD_DEVIATION, Math.sqrt(variance));
+        }
+        double y = (now - this.last_heard - mean - ACCEPTABLE_PAUSE) / std_deviation;
+        // Logistic approximation of the normal distribution's tail, which stays accurate far into it.
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (y > 0) {
+            return -Math.log10(e / (1 + e));
+        }
+        return Math.max(0, -Math.log10(1 - 1 / (1 + e)));
+    }
+
+    /**
+     * Returns true if the peer's suspicion level has passed THRESHOLD.
+     *
+     * @param now time in milliseconds.
+     */
+    public boolean isSuspected(long now) {
+        return phi(now) > THRESHOLD;
+    }
+
+    private void add(double interval) {
+        if (this.count == WINDOW) {
+            // The window is full, the oldest interval makes room.
+            double oldest = this.intervals[this.next];
+            this.sum -= oldest;
+            this.sum_squares -= oldest * oldest;
+        } else {
+            this.count++;
+        }
+        this.intervals[this.next] = interval;
+        this.next = (this.next + 1) % WINDOW;
+        this.sum += interval;
+        this.sum_squares += interval * interval;
+    }
+}
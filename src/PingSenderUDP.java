@@ -1,37 +1,138 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Failure detector for the successors of a peer, which also measures the round trip time to its fingers.
+ *
+ * A single thread drives every probe over one non-blocking DatagramChannel. Every PING_FREQ milliseconds each
+ * successor and finger without a ping outstanding is sent one, tagged with a sequence number that the response
+ * echoes, so a late response is never taken for the answer to a newer ping. A ping that is not answered within
+ * SOCKET_TIMEOUT_FREQ milliseconds is resent straight away. Every successor has a PhiAccrualDetector fed with its
+ * responses. Once its suspicion level passes the threshold, or another peer reports it suspected or dead, the
+ * successor is suspected SWIM style: INDIRECT_PROBES other peers are asked to ping it on our behalf and relay the
+ * response, and it is only declared dead if neither it nor any of them answer within two ping timeouts. A peer
+ * that is merely slow to reach from here, or a lost datagram, then no longer breaks the ring. With the interval
+ * and timeout set to tens of milliseconds a failed successor is detected and the ring repaired within a second.
+ *
+ * Membership updates (see Membership) are piggybacked on every ping and response.
+ */
 public class PingSenderUDP implements Runnable {
     private static final String threadName = "PingSenderUDP";
+    // Peers asked to ping a suspected successor for us (-Dcdht.indirect_probes=N).
+    public static final int INDIRECT_PROBES = Integer.getInteger("cdht.indirect_probes", 3);
     private Thread t;
     private cdht peer;
-    private boolean first;
     private volatile boolean shutdown = false;
-    private DatagramSocket udpSocket;
+    private DatagramChannel channel;
+    private Selector selector;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+    // Pings waiting for a response, keyed by sequence number.
+    private final Map<Integer, Probe> pending = new LinkedHashMap<Integer, Probe>();
+    // Failure detector of each successor, read by the debug command.
+    private final Map<Integer, PhiAccrualDetector> detectors = new ConcurrentHashMap<Integer, PhiAccrualDetector>();
+    // Suspected successors and when they are declared dead unless they answer first.
+    private final Map<Integer, Long> suspects = new HashMap<Integer, Long>();
+    // Successors other peers have reported as suspected or dead, checked on the next pass.
+    private final Set<Integer> reported = ConcurrentHashMap.newKeySet();
+    // Pings other peers asked us to send on their behalf, not sent yet.
+    private final Queue<Probe> relays = new ConcurrentLinkedQueue<Probe>();
+    private int next_seq = 0;
+    private long next_round = 0;
 
     /**
-     * Instantiates a PingSender to send pings over UDP.
+     * A ping waiting for its response.
+     */
+    private static final class Probe {
+        private final int peer_id;
+        private long sent_at;
+        private long deadline;
+        // True if another peer was asked to ping peer_id for us, its response is relayed back.
+        private final boolean indirect;
+        // Where to relay the response to if we are pinging peer_id for another peer, and the sequence number that
+        // peer used.
+        private final SocketAddress relay_to;
+        private final int relay_seq;
+
+        private Probe(int peer_id, boolean indirect, SocketAddress relay_to, int relay_seq) {
+            this.peer_id = peer_id;
+            this.indirect = indirect;
+            this.relay_to = relay_to;
+            this.relay_seq = relay_seq;
+        }
+
+        private Probe sent(long sent_at, long timeout) {
+            this.sent_at = sent_at;
+            this.deadline = sent_at + TimeUnit.MILLISECONDS.toNanos(timeout);
+            return this;
+        }
+    }
+
+    /**
+     * Instantiates a PingSender that pings every peer in the successor list over UDP.
      * @param peer
-     * @param first - if first then we send to the first successor. Otherwise send to the second successor.
      */
-    public PingSenderUDP(cdht peer, boolean first) {
+    public PingSenderUDP(cdht peer) {
         this.peer = peer;
-        this.first = first;
     }
-    
+
     /**
      * Runs the main thread loop.
      */
     public void run() {
         try {
-            // Create a socket and set a maximum time (TIMEOUT) for which the receiver must send a response.
-            this.udpSocket = new DatagramSocket();
-            this.udpSocket.setSoTimeout(cdht.SOCKET_TIMEOUT_FREQ);
+            InetAddress ip = InetAddress.getLocalHost();
+            this.next_round = System.nanoTime();
             while(!shutdown) {
-                sendPing(this.first);;
+                long now = System.nanoTime();
+                if (now - this.next_round >= 0) {
+                    this.next_round = now + TimeUnit.MILLISECONDS.toNanos(cdht.PING_FREQ);
+                    probePeers(ip, now);
+                }
+                // Sleep until the next round, the next ping expires or a suspect runs out of time.
+                long wake = this.next_round;
+                for (Probe probe : this.pending.values()) {
+                    if (probe.deadline - wake < 0) {
+                        wake = probe.deadline;
+                    }
+                }
+                for (long deadline : this.suspects.values()) {
+                    if (deadline - wake < 0) {
+                        wake = deadline;
+                    }
+                }
+                long wait = TimeUnit.NANOSECONDS.toMillis(wake - System.nanoTime() + 999999);
+                if (wait > 0) {
+                    this.selector.select(wait);
+                } else {
+                    this.selector.selectNow();
+                }
+                this.selector.selectedKeys().clear();
+                sendRelays(ip);
+                receiveResponses();
+                expireProbes(ip);
+                checkSuccessors(ip);
             }
-        } catch (SocketException e) {
+        } catch (IOException e) {
             return;
+        } finally {
+            close();
         }
     }
 
@@ -40,7 +141,18 @@ public class PingSenderUDP implements Runnable {
      */
     public void start () {
         if (this.t == null) {
-            this.t = new Thread (this, threadName);
+            try {
+                this.selector = Selector.open();
+                this.channel = DatagramChannel.open();
+                this.channel.configureBlocking(false);
+                this.channel.bind(null);
+                this.channel.register(this.selector, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                e.printStackTrace();
+                close();
+                return;
+            }
+            this.t = TaskScope.newThread(this, threadName, false);
             this.t.start();
         }
     }
@@ -49,92 +161,346 @@ public class PingSenderUDP implements Runnable {
      * Shuts down the thread.
      */
     public void shutdown() {
-        this.udpSocket.close();
         this.shutdown = true;
+        if (this.selector != null) {
+            this.selector.wakeup();
+        }
     }
 
     /**
-     * Loop that continually sends pings based on a timer.
+     * Asks the ping sender to check a successor that another peer has reported as suspected or dead.
+     *
      * @param id
      */
-    private void sendPing(boolean first) {
-        // Set the ip to just a local address.
-        try {
-            InetAddress ip = InetAddress.getLocalHost();
-        
-            // Stores how many failed pings we have. Once we go over the fail threshold, declare the successor dead.
-            int ping_fails = 0;
-            int id;
-        
-            while(!this.shutdown) {
-                if (first) {
-                    id = this.peer.getFirstSuccessor();
-                } else {
-                    id = this.peer.getSecondSuccessor();
+    public void suspect(int id) {
+        this.reported.add(id);
+        wakeup();
+    }
+
+    /**
+     * Pings a peer on behalf of another peer that suspects it, relaying the response back.
+     *
+     * @param id the suspected peer.
+     * @param requester address the request came from.
+     * @param seq sequence number the requester expects back.
+     */
+    public void relay(int id, SocketAddress requester, int seq) {
+        this.relays.add(new Probe(id, false, requester, seq));
+        wakeup();
+    }
+
+    private void wakeup() {
+        if (this.selector != null) {
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Sends a ping to every successor and finger that does not already have one outstanding.
+     */
+    private void probePeers(InetAddress ip, long now) throws IOException {
+        int[] successors = this.peer.getSuccessors();
+        for (int i = 0; i < successors.length; i++) {
+            if (!isPending(successors[i])) {
+                System.out.println("Sending ping request to Peer " + successors[i]);
+                sendPing(ip, successors[i], i, now);
+            }
+        }
+        for (int finger : this.peer.getFingers()) {
+            if (finger != this.peer.getPeer() && !isPending(finger)) {
+                sendPing(ip, finger, -1, now);
+            }
+        }
+    }
+
+    /**
+     * Sends the pings other peers have asked us to send for them.
+     */
+    private void sendRelays(InetAddress ip) throws IOException {
+        Probe probe;
+        while ((probe = this.relays.poll()) != null) {
+            int seq = this.next_seq++;
+            this.pending.put(seq, probe.sent(System.nanoTime(), cdht.SOCKET_TIMEOUT_FREQ));
+            send(ip, probe.peer_id, createPingRequest(peer.getPeer(), -1, seq));
+        }
+    }
+
+    /**
+     * Reads every response waiting on the channel and matches it to its ping by sequence number.
+     */
+    private void receiveResponses() throws IOException {
+        while (true) {
+            this.buffer.clear();
+            if (this.channel.receive(this.buffer) == null) {
+                return;
+            }
+            this.buffer.flip();
+            String[] parts = StandardCharsets.US_ASCII.decode(this.buffer).toString().split("\\|", 2);
+            if (parts.length > 1) {
+                this.peer.applyMembership(parts[1]);
+            }
+            int[] response = parsePingResponse(parts[0]);
+            if (response.length < 2) {
+                continue;
+            }
+            Probe probe = this.pending.get(response[1]);
+            if (probe == null || probe.peer_id != response[0]) {
+                // The ping has already expired, or the response is not one of ours.
+                continue;
+            }
+            this.pending.remove(response[1]);
+            if (probe.relay_to != null) {
+                // Pass the response on to the peer that asked us to ping.
+                this.channel.send(ByteBuffer.wrap((probe.peer_id + " " + probe.relay_seq).getBytes()),
+                        probe.relay_to);
+            }
+            if (!probe.indirect) {
+                long rtt = System.nanoTime() - probe.sent_at;
+                LatencyTable.sample(probe.peer_id, rtt / 1e6);
+                Metrics.PING_RESPONSES.increment();
+                Metrics.PING_RTT.record(rtt / 1000);
+            }
+            if (this.suspects.remove(probe.peer_id) != null) {
+                System.out.println(String.format("Peer %d answered, it is no longer suspected.", probe.peer_id));
+            }
+            if (indexOf(this.peer.getSuccessors(), probe.peer_id) >= 0) {
+                // Response correctly received, the successor is alive.
+                detector(probe.peer_id, now()).heartbeat(now());
+                if (probe.indirect) {
+                    continue;
                 }
-                // Create a bytestream from a ping request to send.
-                byte[] ping_buf;
-                String ping_string = createPingRequest(peer.getPeer(), this.first);
-                ping_buf = ping_string.getBytes();
-                DatagramPacket ping_request = new DatagramPacket(ping_buf,  ping_buf.length, ip, cdht.getPort(id));
-                
-                // Send the request.
-                System.out.println("Sending ping request to Peer " + id);
-                this.udpSocket.send(ping_request);
-
-                // buffer to store the response in.
-                byte[] ping_response = new byte[1024];
-                
-                try {
-                    // Response correctly recevied, read response and print out the response to terminal.
-                    DatagramPacket response_packet = new DatagramPacket(ping_response, ping_response.length);
-                    this.udpSocket.receive(response_packet);
-                    
-                    // Reset the failure counter as we have correctly received a ping.
-                    ping_fails = 0;
-                    printPingResponse(response_packet);
-                    
-                } catch (SocketTimeoutException e) {
-                    // No response has been received. Incremement the # of fails, or deal with dead peers.
-                    if (ping_fails >= cdht.MAX_FAILS) {
-                        peer.handleDeadPeer(this.first);
-                    } else {
-                        ping_fails++;
-                    }
+                System.out.println("A ping response message was received from Peer " + probe.peer_id);
+                if (response.length < 4) {
+                    continue;
+                }
+                // Drop the sequence number and predecessor, the rest is the responder's id followed by its
+                // successors.
+                int[] successors = new int[response.length - 2];
+                successors[0] = response[0];
+                System.arraycopy(response, 3, successors, 1, response.length - 3);
+                this.peer.refreshSuccessors(successors);
+                this.peer.stabilize(response[0], response[2]);
+            }
+        }
+    }
+
+    /**
+     * Pings every successor whose ping has run out of time again straight away, so its detector hears from it as
+     * soon as it answers. Pings to fingers are only sent to measure the round trip and are not resent.
+     */
+    private void expireProbes(InetAddress ip) throws IOException {
+        long now = System.nanoTime();
+        List<Probe> expired = new ArrayList<Probe>();
+        Iterator<Probe> it = this.pending.values().iterator();
+        while (it.hasNext()) {
+            Probe probe = it.next();
+            if (now - probe.deadline >= 0) {
+                expired.add(probe);
+                it.remove();
+            }
+        }
+        for (Probe probe : expired) {
+            int position = indexOf(this.peer.getSuccessors(), probe.peer_id);
+            if (position >= 0 && !probe.indirect && probe.relay_to == null) {
+                System.out.println("Sending ping request to Peer " + probe.peer_id);
+                sendPing(ip, probe.peer_id, position, now);
+            }
+        }
+    }
+
+    /**
+     * Starts suspecting every successor whose suspicion level has passed PhiAccrualDetector.THRESHOLD or that
+     * another peer has reported, and declares dead every suspect that has not answered in time.
+     */
+    private void checkSuccessors(InetAddress ip) throws IOException {
+        long now = now();
+        int[] successors = this.peer.getSuccessors();
+        // Forget the detectors of peers that are no longer successors.
+        this.detectors.keySet().removeIf(id -> indexOf(successors, id) < 0);
+        this.suspects.keySet().removeIf(id -> indexOf(successors, id) < 0);
+        this.reported.removeIf(id -> indexOf(successors, id) < 0);
+        boolean dropped = false;
+        for (int id : successors) {
+            Long deadline = this.suspects.get(id);
+            // Only the report examined here is consumed, one that arrives later waits for the next pass.
+            boolean was_reported = this.reported.remove(id);
+            if (deadline == null) {
+                if (detector(id, now).isSuspected(now) || was_reported) {
+                    startSuspicion(ip, id);
                 }
-                // Wait a while until sending the next set of pings.
-                Thread.sleep(cdht.PING_FREQ);
+            } else if (System.nanoTime() - deadline >= 0) {
+                this.suspects.remove(id);
+                this.detectors.remove(id);
+                this.peer.handleDeadPeer(id);
+                dropped = true;
+            }
+        }
+        if (dropped) {
+            // Probe again straight away so the list is refilled from the new first successor within one round
+            // trip.
+            this.next_round = System.nanoTime();
+        }
+    }
+
+    /**
+     * Suspects a successor: pings it once more directly and asks up to INDIRECT_PROBES other successors and
+     * fingers to ping it too.
+     */
+    private void startSuspicion(InetAddress ip, int id) throws IOException {
+        long now = System.nanoTime();
+        long timeout = 2L * cdht.SOCKET_TIMEOUT_FREQ;
+        this.suspects.put(id, now + TimeUnit.MILLISECONDS.toNanos(timeout));
+        this.peer.announceMember(Membership.SUSPECT, id);
+
+        List<Integer> helpers = new ArrayList<Integer>();
+        for (int[] peers : new int[][] {this.peer.getSuccessors(), this.peer.getFingers()}) {
+            for (int helper : peers) {
+                if (helper != id && helper != this.peer.getPeer() && !helpers.contains(helper)) {
+                    helpers.add(helper);
+                }
+            }
+        }
+        Collections.shuffle(helpers);
+        helpers = helpers.subList(0, Math.min(INDIRECT_PROBES, helpers.size()));
+        System.out.println(String.format("Peer %d is suspected, asking %d other peers to ping it.", id,
+                helpers.size()));
+        if (!isPending(id)) {
+            sendPing(ip, id, indexOf(this.peer.getSuccessors(), id), now);
+        }
+        for (int helper : helpers) {
+            int seq = this.next_seq++;
+            this.pending.put(seq, new Probe(id, true, null, 0).sent(now, timeout));
+            send(ip, helper, createIndirectPingRequest(this.peer.getPeer(), id, seq));
+        }
+    }
+
+    /**
+     * Returns the suspicion level of every successor as [peer:phi] pairs for the debug command.
+     */
+    public String describeSuspicion() {
+        long now = now();
+        StringBuilder sb = new StringBuilder();
+        for (int id : this.peer.getSuccessors()) {
+            PhiAccrualDetector detector = this.detectors.get(id);
+            if (detector != null) {
+                sb.append(sb.length() == 0 ? "" : " ").append(String.format("%d:%.2f", id, detector.phi(now)));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the detector of a successor, starting one if it has just become a successor.
+     */
+    private PhiAccrualDetector detector(int id, long now) {
+        return this.detectors.computeIfAbsent(id, k -> new PhiAccrualDetector(now));
+    }
+
+    /**
+     * Returns a monotonic time in milliseconds for the detectors.
+     */
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Sends a ping to one peer and notes it as waiting for a response.
+     *
+     * @param position the peer's place in the successor list, or -1 for a finger.
+     */
+    private void sendPing(InetAddress ip, int id, int position, long now) throws IOException {
+        int seq = this.next_seq++;
+        this.pending.put(seq, new Probe(id, false, null, 0).sent(now, cdht.SOCKET_TIMEOUT_FREQ));
+        send(ip, id, createPingRequest(peer.getPeer(), position, seq));
+    }
+
+    /**
+     * Sends a message to a peer's ping server, with the membership updates due to be spread piggybacked on it.
+     */
+    private void send(InetAddress ip, int id, String message) throws IOException {
+        String updates = this.peer.piggyback();
+        // Create a bytestream from a ping request to send.
+        byte[] ping_buf = (updates.isEmpty() ? message : message + " | " + updates).getBytes();
+        this.channel.send(ByteBuffer.wrap(ping_buf), new InetSocketAddress(ip, cdht.getPort(id)));
+        Metrics.PINGS_SENT.increment();
+    }
+
+    private boolean isPending(int id) {
+        for (Probe probe : this.pending.values()) {
+            if (probe.peer_id == id && !probe.indirect && probe.relay_to == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(int[] ids, int id) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void close() {
+        try {
+            if (this.channel != null) {
+                this.channel.close();
+            }
+            if (this.selector != null) {
+                this.selector.close();
             }
         } catch (IOException e) {
             return;
-        } catch (InterruptedException e) {
-            e.printStackTrace();
         }
     }
 
     /**
-     * Creates a ping request string giving information about the sending peer to the successor. 
-     * 
-     * Ping format is: [PG] [SENDING PEER]  [FLAG]
-     * 
-     * Where flag == true => we are sending to the first successor.
-     * 
-     * @param cdht peer
+     * Creates a ping request string giving information about the sending peer to the successor.
+     *
+     * Ping format is: [PG] [SENDING PEER] [POSITION] [SEQUENCE NUMBER] | [MEMBERSHIP UPDATES]
+     *
+     * Where position is the receiver's place in the sender's successor list, 0 for the first successor, or -1 if
+     * the receiver is one of the sender's fingers. The receiver echoes the sequence number in its response. The
+     * membership updates are left out, with the bar, when there are none to spread.
+     *
+     * @param peer_id
+     * @param position
+     * @param seq
      * @return A ping request string consisting of the peer id.
      */
-    private String createPingRequest(int peer_id, boolean flag) {
-        int val = flag ? 1 : 0;
-        return "PG" + " " + peer_id + " " + val;
+    private String createPingRequest(int peer_id, int position, int seq) {
+        return "PG" + " " + peer_id + " " + position + " " + seq;
     }
 
     /**
-     * Prints out the message stored in a receive ping.
-     * @param ping_response
+     * Creates a request asking another peer to ping a suspected peer for us.
+     *
+     * Format is: [PI] [SENDING PEER] [SUSPECTED PEER] [SEQUENCE NUMBER] | [MEMBERSHIP UPDATES]
+     *
+     * The receiver pings the suspected peer and relays its response back as [SUSPECTED PEER] [SEQUENCE NUMBER].
      */
-    private void printPingResponse(DatagramPacket ping_response) throws IOException{
-        byte[] buf = ping_response.getData();
-        BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf)));
-        String ping_text = br.readLine().replaceAll("\\s", "");
-        System.out.println("A ping response message was received from Peer " + ping_text);
+    private String createIndirectPingRequest(int peer_id, int suspect_id, int seq) {
+        return "PI" + " " + peer_id + " " + suspect_id + " " + seq;
+    }
+
+    /**
+     * Reads a ping response, which is the responding peer's id, the sequence number of the ping and its first
+     * predecessor followed by its successor list, and then any membership updates after a bar.
+     * @param ping_response the response up to the bar.
+     * @return the numbers in the response, or an empty array if it cannot be read.
+     */
+    private int[] parsePingResponse(String ping_response) {
+        String[] ping_text = ping_response.trim().split("\\s+");
+        int[] ids = new int[ping_text.length];
+        try {
+            for (int i = 0; i < ping_text.length; i++) {
+                ids[i] = Integer.parseInt(ping_text[i]);
+            }
+        } catch (NumberFormatException e) {
+            return new int[0];
+        }
+        return ids;
     }
 }
@@ -1,210 +1,401 @@
-import java.io.*;
-import java.net.*;
-import java.time.Duration;
-import java.time.Instant;
-
-public class PingServerUDP implements Runnable {
-
-    private static final String threadName = "PingServerUDP";
-    private Thread t;
-    private cdht peer;
-    private DatagramSocket udpSocket;
-    private FileOutputStream fos = null;
-    private volatile boolean shutdown = false;
-    private PrintWriter requesting_log;
-
-    /**
-     * Instantiates a ping server.
-     * 
-     * @param peer
-     */
-    public PingServerUDP(cdht peer) {
-        this.peer = peer;
-    }
-
-    /**
-     * Main running loop for the thread.
-     */
-    public void run() {
-        try {
-            // Create a new UDP socket with the given port.
-            this.udpSocket = new DatagramSocket(cdht.getPort(peer.getPeer()));
-            while (!this.shutdown) {
-                // Read in a request through the socket.
-                DatagramPacket request = new DatagramPacket(new byte[peer.getMSS() + cdht.TRANSFER_HEADER_LEN],
-                        peer.getMSS() + cdht.TRANSFER_HEADER_LEN);
-                this.udpSocket.receive(request);
-
-                // Handles the UDP packet based on whether it is a ping or a file send.
-                handlePacket(request);
-            }
-        } catch (SocketException e) {
-            return;
-        } catch (IOException e) {
-            return;
-        }
-    }
-
-    /**
-     * Starts the main thread.
-     */
-    public void start() {
-        if (this.t == null) {
-            this.t = new Thread(this, threadName);
-            this.t.start();
-        }
-    }
-
-    /**
-     * Shuts down the thread.
-     */
-    public void shutdown() {
-        this.udpSocket.close();
-        this.shutdown = true;
-    }
-
-    /**
-     * Directs packet function based on whether the packet was a file request or a
-     * ping.
-     * 
-     * @param request
-     */
-    private void handlePacket(DatagramPacket request) {
-
-        ByteArrayOutputStream request_outstrm = new ByteArrayOutputStream();
-        request_outstrm.write(request.getData(), 0, 2);
-        byte[] type_buf = request_outstrm.toByteArray();
-        try {
-            if (new String(type_buf).equals("FS")) {
-
-                // Grab header data from the request packet.
-                request_outstrm = new ByteArrayOutputStream();
-                request_outstrm.write(request.getData(), 0, cdht.TRANSFER_HEADER_LEN);
-                byte[] header_buf = request_outstrm.toByteArray();
-                String header = new String(header_buf);
-                String[] header_data = header.trim().split(" ");
-
-                int seq_num = Integer.parseInt(header_data[1]);
-                int num_bytes_sent = Integer.parseInt(header_data[2]);
-                int eof_flag = Integer.parseInt(header_data[3]);
-
-                // Grab ip and port information from sending peer.
-                InetAddress ip = request.getAddress();
-                int port = request.getPort();
-
-                // The file stream hasn't been created yet so create it.
-                if (this.fos == null) {
-                    this.fos = new FileOutputStream("received_file.pdf");
-                    this.requesting_log = new PrintWriter("requesting_log.txt");
-                }
-
-                // Receive a file packet and write to log file we have received the packet.
-                receiveFilePacket(request, eof_flag);
-                Duration time_diff = Duration.between(peer.time, Instant.now());
-                this.requesting_log.println(cdht.write_log_text("rcv", time_diff.toMillis(), seq_num, num_bytes_sent, 0));
-
-                // Send an acknowledgement to the responder and write to the log file.
-                ackFilePacket(seq_num, num_bytes_sent, ip, port);
-                this.requesting_log.println(
-                        cdht.write_log_text("snd", time_diff.toMillis(), 0, num_bytes_sent, seq_num + num_bytes_sent));
-
-                // The end of the file is reached, close the requesting log.
-                if (eof_flag == 1) {
-                    System.out.println("The file is received.");
-                    this.fos.close();
-                    this.requesting_log.close();
-                    this.fos = null;
-                }
-            } else if (new String(type_buf).equals("PG")) {
-                // Print ping request and send a response back to the sender.
-                printPingRequest(request);
-                sendPingResponse(this.udpSocket, request, Integer.toString(peer.getPeer()));
-            }
-        } catch (FileNotFoundException e) {
-            return;
-        } catch (IOException e) {
-            return;
-        }
-        
-    }
-
-    private void receiveFilePacket(DatagramPacket request, int eof_flag) {
-        try {
-            this.fos.write(request.getData(), cdht.TRANSFER_HEADER_LEN, request.getLength() - cdht.TRANSFER_HEADER_LEN);
-        } catch (IOException e) {
-            return;
-        }
-    }
-
-    /**
-     * UDP ACK FORMAT: [ACK] [ACK_NUM]
-     * 
-     * @param sending_peer who to send the ACK to.
-     * @param num_bytes_sent how many bytes were read (used for sequence numbers).
-     */
-    private void ackFilePacket(int seq_num, int num_bytes_sent, InetAddress ip, int port) {
-        int ack_num = seq_num + num_bytes_sent;
-        String ack = "ACK" + " " + ack_num + " " + num_bytes_sent;
-        byte[] ack_bytes = ack.getBytes();
-        DatagramPacket ack_pkt = new DatagramPacket(ack_bytes, ack_bytes.length, ip, port);
-        try {
-            this.udpSocket.send(ack_pkt);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return;
-        }
-    }
-
-    /**
-     * Prints a ping receipt to standard output and updates predecessors.
-     * 
-     * @param request
-     */
-    private void printPingRequest(DatagramPacket request) {
-        // Read the ping data into an array.
-        byte[] buf = request.getData();
-        BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf)));
-        try {
-            String[] ping_str_data = br.readLine().trim().split(" ");
-            // Convert ping data to an integer array
-            int[] ping_data = new int[2];
-            ping_data[0] = Integer.parseInt(ping_str_data[1]);
-            ping_data[1] = Integer.parseInt(ping_str_data[2]);
-            printPingReceipt(ping_data[0]);
-            peer.updatePredecessors(ping_data[0], ping_data[1]);
-        } catch (NumberFormatException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    /**
-     * Prints out a receive message for a ping.
-     * 
-     * @param id
-     */
-    private void printPingReceipt(int id) {
-        System.out.println("A ping request message was received from Peer " + id);
-    }
-
-    /**
-     * Sends a ping response based on received packet String.
-     * 
-     * @param socket UDP socket.
-     * @param request request packet.
-     * @param ping_text text from the request packet.
-     * @throws IOException
-     */
-    private void sendPingResponse(DatagramSocket socket, DatagramPacket request, String ping_text) {
-        byte[] ping_response = ping_text.getBytes();
-        DatagramPacket response = new DatagramPacket(ping_response, ping_response.length, request.getAddress(), 
-                                                    request.getPort());
-        try {
-            socket.send(response);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return;
-        }
-    }
-}
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+public class PingServerUDP implements Runnable {
+
+    private static final String threadName = "PingServerUDP";
+    private Thread t;
+    private cdht peer;
+    private DatagramSocket udpSocket;
+    // Sessions idle for longer than this are abandoned.
+    private static final long SESSION_TIMEOUT = 30000;
+    // Number of finished sessions remembered so their late retransmissions are still ACKed.
+    private static final int COMPLETED_SESSIONS = 256;
+    private volatile boolean shutdown = false;
+    // Start of the program in epoch milliseconds, times in the transfer log are relative to it.
+    private final long start_millis;
+
+    // Receive state of every transfer in progress, keyed by session id.
+    private final Map<Integer, TransferSession> sessions = new ConcurrentHashMap<Integer, TransferSession>();
+    // Length of the file received by recently completed sessions, keyed by session id.
+    private final Map<Integer, Long> completed_sessions = new LinkedHashMap<Integer, Long>() {
+        protected boolean removeEldestEntry(Map.Entry<Integer, Long> eldest) {
+            return size() > COMPLETED_SESSIONS;
+        }
+    };
+    // Sessions refused because their file was already being received, their segments stay unacknowledged.
+    private final Map<Integer, Boolean> refused_sessions = new LinkedHashMap<Integer, Boolean>() {
+        protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+            return size() > COMPLETED_SESSIONS;
+        }
+    };
+    private long last_sweep = System.currentTimeMillis();
+
+    // Buffers reused for every packet received and every ACK sent.
+    private ByteBuffer request_buffer;
+    private final ByteBuffer ack_buffer = ByteBuffer.allocate(TransferHeader.MAX_ACK_LEN);
+    private final DatagramPacket ack_pkt = new DatagramPacket(this.ack_buffer.array(), TransferHeader.MAX_ACK_LEN);
+    private final long[] sack_blocks = new long[2 * TransferHeader.MAX_SACK_BLOCKS];
+    private final CRC32C crc = new CRC32C();
+
+    /**
+     * Instantiates a ping server.
+     * 
+     * @param peer
+     */
+    public PingServerUDP(cdht peer) {
+        this.peer = peer;
+        this.start_millis = peer.time.toEpochMilli();
+    }
+
+    /**
+     * Main running loop for the thread.
+     */
+    public void run() {
+        try {
+            // Create a new UDP socket with the given port.
+            this.udpSocket = new DatagramSocket(cdht.getPort(peer.getPeer()));
+            this.udpSocket.setReceiveBufferSize(cdht.SOCKET_RECEIVE_BUFFER);
+            byte[] request_data = new byte[peer.getMSS() + cdht.TRANSFER_HEADER_LEN];
+            this.request_buffer = ByteBuffer.wrap(request_data);
+            DatagramPacket request = new DatagramPacket(request_data, request_data.length);
+            while (!this.shutdown) {
+                // Read in a request through the socket.
+                request.setLength(request_data.length);
+                this.udpSocket.receive(request);
+
+                // Handles the UDP packet based on whether it is a ping or a file send.
+                handlePacket(request);
+            }
+        } catch (SocketException e) {
+            return;
+        } catch (IOException e) {
+            return;
+        }
+    }
+
+    /**
+     * Starts the main thread.
+     */
+    public void start() {
+        if (this.t == null) {
+            this.t = new Thread(this, threadName);
+            this.t.start();
+        }
+    }
+
+    /**
+     * Shuts down the thread.
+     */
+    public void shutdown() {
+        this.shutdown = true;
+        this.udpSocket.close();
+        // Save the progress of unfinished downloads so they can be resumed after a restart.
+        for (int session_id : this.sessions.keySet()) {
+            closeSession(session_id);
+        }
+    }
+
+    /**
+     * Directs packet function based on whether the packet was a file request or a
+     * ping.
+     * 
+     * @param request
+     */
+    private void handlePacket(DatagramPacket request) {
+        try {
+            if (TransferHeader.isTransferPacket(request.getData(), request.getLength())) {
+                ByteBuffer header = this.request_buffer;
+                // Drop corrupted segments, the sender will retransmit them.
+                if (!TransferHeader.isValid(header, request.getLength(), this.crc)
+                        || TransferHeader.type(header) != TransferHeader.TYPE_DATA) {
+                    return;
+                }
+                int session_id = TransferHeader.sessionId(header);
+                long offset = TransferHeader.offset(header);
+                int num_bytes_sent = TransferHeader.length(header);
+                // Sequence numbers in the log stay 1-based as before.
+                long seq_num = offset + 1;
+
+                TransferSession session = this.sessions.get(session_id);
+                if (session == null) {
+                    if (this.shutdown) {
+                        // The sessions have been saved for resuming, do not start another one.
+                        return;
+                    }
+                    if (this.refused_sessions.containsKey(session_id)) {
+                        return;
+                    }
+                    if (this.completed_sessions.containsKey(session_id)) {
+                        // A late retransmission from a transfer we already finished, its ACK must have been lost.
+                        ackFilePacket(null, session_id, offset, num_bytes_sent, request.getSocketAddress());
+                        return;
+                    }
+                    session = startSession(session_id, TransferHeader.fileName(header), -1);
+                    if (session == null) {
+                        // Another sender is already filling in this file, leave this one unacknowledged until
+                        // it gives up, even once the other session has completed the file.
+                        this.refused_sessions.put(session_id, true);
+                        return;
+                    }
+                }
+                // Receive a file packet and write to log file we have received the packet.
+                long time_diff = System.currentTimeMillis() - this.start_millis;
+                TransferLog.REQUESTING.packet(TransferLog.RCV, time_diff, seq_num, num_bytes_sent, 0);
+                header.limit(request.getLength()).position(cdht.TRANSFER_HEADER_LEN);
+                try {
+                    session.receive(header, offset, TransferHeader.isEof(header));
+                } finally {
+                    // The buffer is shared by every packet, a failed write must not leave it cut short.
+                    header.clear();
+                }
+
+                // Send an acknowledgement to the responder and write to the log file.
+                long cumulative = ackFilePacket(session, session_id, offset, num_bytes_sent,
+                        request.getSocketAddress());
+                TransferLog.REQUESTING.packet(TransferLog.SND, time_diff, 0, num_bytes_sent, cumulative + 1);
+
+                // Every byte up to the end of the file has been written, close the session.
+                if (session.isComplete()) {
+                    System.out.println("The file is received.");
+                    System.out.println(session.summary());
+                    Metrics.TRANSFERS_RECEIVED.increment();
+                    Metrics.TRANSFER_BYTES.add(session.getBytes());
+                    Metrics.TRANSFER_THROUGHPUT.record(Math.round(session.throughput()));
+                    finishSession(session);
+                }
+                sweepIdleSessions();
+            } else if (request.getLength() >= 2 && request.getData()[0] == 'P' && request.getData()[1] == 'G') {
+                // Print ping request and send a response back to the sender.
+                Metrics.PINGS_RECEIVED.increment();
+                int seq = printPingRequest(request);
+                String updates = peer.piggyback();
+                RoutingState routing = peer.getRoutingState();
+                sendPingResponse(this.udpSocket, request, peer.getPeer() + " " + seq + " " + routing.first_pred
+                        + " " + routing.successors + (updates.isEmpty() ? "" : " | " + updates));
+            } else if (request.getLength() >= 2 && request.getData()[0] == 'P' && request.getData()[1] == 'I') {
+                // Another peer suspects a peer and asks us to ping it for them.
+                String[] parts = readPing(request);
+                peer.relayPing(Integer.parseInt(parts[2]), request.getSocketAddress(), Integer.parseInt(parts[3]));
+            }
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            return;
+        } catch (RuntimeException e) {
+            // A malformed ping, ignore it.
+            return;
+        }
+        
+    }
+
+    /**
+     * Registers a session ahead of its first segment, used by swarm downloads where several peers send different
+     * ranges of the same file into one session.
+     * 
+     * @param session_id id the senders will tag their segments with.
+     * @param file_name name of the file being downloaded.
+     * @param file_len total length of the file.
+     * @return the new session.
+     */
+    public TransferSession openSession(int session_id, int file_name, long file_len) throws IOException {
+        TransferSession session = startSession(session_id, file_name, file_len);
+        if (session == null) {
+            throw new IOException("File " + file_name + " is already being received.");
+        }
+        return session;
+    }
+
+    /**
+     * Opens a session unless the file is already being received. Sessions share the file's output and .part
+     * files, so two of them at once would overwrite each other's data and progress.
+     * 
+     * @return the new session, or null if another session is receiving the file.
+     */
+    private TransferSession startSession(int session_id, int file_name, long file_len) throws IOException {
+        synchronized (this.sessions) {
+            if (isReceiving(file_name)) {
+                return null;
+            }
+            TransferSession session = new TransferSession(session_id, file_name, file_len);
+            this.sessions.put(session_id, session);
+            return session;
+        }
+    }
+
+    /**
+     * Abandons a session that will not be completed.
+     * 
+     * @param session_id
+     */
+    public void closeSession(int session_id) {
+        TransferSession session = this.sessions.remove(session_id);
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     * Returns true if a download of the file is still in progress, in which case our copy must not be served.
+     * 
+     * @param file_name
+     */
+    public boolean isReceiving(int file_name) {
+        for (TransferSession session : this.sessions.values()) {
+            if (session.getFileName() == file_name) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes a session and remembers it as completed.
+     * 
+     * @param session
+     */
+    private void finishSession(TransferSession session) {
+        session.close();
+        this.sessions.remove(session.getSessionId());
+        this.completed_sessions.put(session.getSessionId(), session.cumulativeAck());
+    }
+
+    /**
+     * Abandons sessions whose sender has gone quiet for SESSION_TIMEOUT. Runs at most twice per timeout period.
+     */
+    private void sweepIdleSessions() {
+        long now = System.currentTimeMillis();
+        if (now - this.last_sweep < SESSION_TIMEOUT / 2) {
+            return;
+        }
+        this.last_sweep = now;
+        Iterator<TransferSession> it = this.sessions.values().iterator();
+        while (it.hasNext()) {
+            TransferSession session = it.next();
+            if (now - session.getLastActivity() > SESSION_TIMEOUT) {
+                System.out.println("Transfer timed out. " + session.summary());
+                session.close();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Sends a binary ACK (see TransferHeader) echoing the offset and length of the received segment, with the
+     * session's cumulative ACK and SACK blocks for the ranges received beyond it. The ACK advertises the
+     * session's free buffer space, capped at the session's share of the socket receive buffer.
+     * 
+     * @param session the session the segment belongs to, or null if it has already completed.
+     * @param session_id transfer session the segment belongs to.
+     * @param offset offset of the segment being acknowledged.
+     * @param num_bytes_sent length of the segment being acknowledged.
+     * @param sender who to send the ACK to.
+     * @return the cumulative ACK that was sent.
+     */
+    private long ackFilePacket(TransferSession session, int session_id, long offset, int num_bytes_sent,
+            SocketAddress sender) {
+        int rwnd = cdht.SOCKET_RECEIVE_BUFFER / Math.max(1, this.sessions.size());
+        long cumulative;
+        int blocks = 0;
+        if (session != null) {
+            rwnd = Math.min(rwnd, session.receiveWindow());
+            cumulative = session.cumulativeAck();
+            blocks = session.sackBlocks(offset, this.sack_blocks, TransferHeader.MAX_SACK_BLOCKS);
+        } else {
+            // The whole file has been received.
+            cumulative = this.completed_sessions.get(session_id);
+        }
+        TransferHeader.writeAck(this.ack_buffer, session_id, offset, num_bytes_sent, rwnd, cumulative,
+                this.sack_blocks, blocks, this.crc);
+        this.ack_pkt.setLength(this.ack_buffer.limit());
+        this.ack_pkt.setSocketAddress(sender);
+        try {
+            this.udpSocket.send(this.ack_pkt);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return cumulative;
+    }
+
+    /**
+     * Prints a ping receipt to standard output and updates predecessors.
+     * 
+     * @param request
+     * @return the sequence number of the ping, echoed in the response.
+     */
+    private int printPingRequest(DatagramPacket request) {
+        try {
+            String[] ping_str_data = readPing(request);
+            // Convert ping data to an integer array
+            int[] ping_data = new int[3];
+            ping_data[0] = Integer.parseInt(ping_str_data[1]);
+            ping_data[1] = Integer.parseInt(ping_str_data[2]);
+            ping_data[2] = Integer.parseInt(ping_str_data[3]);
+            // Fingers are pinged only to measure the round trip, those pings are not announced.
+            if (ping_data[1] >= 0) {
+                printPingReceipt(ping_data[0]);
+            }
+            peer.updatePredecessors(ping_data[0], ping_data[1]);
+            return ping_data[2];
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the fields of a ping or indirect ping request and applies the membership updates piggybacked on it.
+     * 
+     * @param request
+     * @return the fields before the membership updates.
+     * @throws IOException
+     */
+    private String[] readPing(DatagramPacket request) throws IOException {
+        // Read the ping data into an array.
+        byte[] buf = request.getData();
+        BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0,
+                request.getLength())));
+        String[] parts = br.readLine().split("\\|", 2);
+        if (parts.length > 1) {
+            peer.applyMembership(parts[1]);
+        }
+        return parts[0].trim().split(" ");
+    }
+
+    /**
+     * Prints out a receive message for a ping.
+     * 
+     * @param id
+     */
+    private void printPingReceipt(int id) {
+        System.out.println("A ping request message was received from Peer " + id);
+    }
+
+    /**
+     * Sends a ping response based on received packet String.
+     * 
+     * @param socket UDP socket.
+     * @param request request packet.
+     * @param ping_text text from the request packet.
+     * @throws IOException
+     */
+    private void sendPingResponse(DatagramSocket socket, DatagramPacket request, String ping_text) {
+        byte[] ping_response = ping_text.getBytes();
+        DatagramPacket response = new DatagramPacket(ping_response, ping_response.length, request.getAddress(), 
+                                                    request.getPort());
+        try {
+            socket.send(response);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+    }
+}
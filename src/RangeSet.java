@@ -0,0 +1,164 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A set of disjoint half-open byte ranges [start, end). Adjacent and overlapping ranges are merged as they are
+ * added, so a transfer with a handful of holes costs a handful of entries no matter how large the file is.
+ */
+public class RangeSet {
+    // Maps the start of every range to its end.
+    private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+
+    /**
+     * Adds [start, end) to the set.
+     *
+     * @return true if any of the bytes were not already in the set.
+     */
+    public boolean add(long start, long end) {
+        if (start >= end || contains(start, end)) {
+            return false;
+        }
+        Map.Entry<Long, Long> before = this.ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        // Swallow every range that starts inside the new one.
+        Map.Entry<Long, Long> next = this.ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            this.ranges.remove(next.getKey());
+            next = this.ranges.ceilingEntry(start);
+        }
+        this.ranges.put(start, end);
+        return true;
+    }
+
+    /**
+     * Returns true if every byte of [start, end) is in the set.
+     */
+    public boolean contains(long start, long end) {
+        Map.Entry<Long, Long> range = this.ranges.floorEntry(start);
+        return range != null && range.getValue() >= end;
+    }
+
+    /**
+     * Returns the end of the range starting at from, or from itself if that byte is missing. With from = 0 this
+     * is the amount of contiguous data at the start of the file.
+     */
+    public long contiguousEnd(long from) {
+        Map.Entry<Long, Long> range = this.ranges.floorEntry(from);
+        return range != null && range.getValue() > from ? range.getValue() : from;
+    }
+
+    /**
+     * Returns the ranges of [start, end) that are not in the set, in order.
+     */
+    public List<long[]> missing(long start, long end) {
+        List<long[]> holes = new ArrayList<long[]>();
+        long pos = start;
+        Map.Entry<Long, Long> range = this.ranges.floorEntry(start);
+        if (range == null || range.getValue() <= start) {
+            range = this.ranges.higherEntry(start);
+        }
+        while (pos < end && range != null && range.getKey() < end) {
+            if (range.getKey() > pos) {
+                holes.add(new long[] { pos, range.getKey() });
+            }
+            pos = Math.max(pos, range.getValue());
+            range = this.ranges.higherEntry(range.getKey());
+        }
+        if (pos < end) {
+            holes.add(new long[] { pos, end });
+        }
+        return holes;
+    }
+
+    /**
+     * Writes up to max ranges into blocks as start, end pairs: the range holding offset first, then the ranges
+     * before it nearest first. Only the parts above floor are written and ranges ending at or below it are left
+     * out. Used for SACK blocks, which should describe the part of the file the sender is working on.
+     *
+     * @param blocks array of at least 2 * max elements.
+     * @return the number of ranges written.
+     */
+    public int blocksBefore(long offset, long floor, long[] blocks, int max) {
+        int count = 0;
+        Map.Entry<Long, Long> range = this.ranges.floorEntry(offset);
+        while (range != null && count < max && range.getValue() > floor) {
+            blocks[2 * count] = Math.max(range.getKey(), floor);
+            blocks[2 * count + 1] = range.getValue();
+            count++;
+            range = this.ranges.lowerEntry(range.getKey());
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of disjoint ranges.
+     */
+    public int size() {
+        return this.ranges.size();
+    }
+
+    /**
+     * Returns the end of the last range, or 0 if the set is empty.
+     */
+    public long highestEnd() {
+        return this.ranges.isEmpty() ? 0 : this.ranges.lastEntry().getValue();
+    }
+
+    /**
+     * Returns a copy of the set holding only its largest n ranges. Leaving out ranges only ever makes a sender
+     * resend data, so this is a safe way to bound the size of a range set carried in a message.
+     */
+    public RangeSet largest(int n) {
+        List<long[]> list = ranges();
+        list.sort((a, b) -> Long.compare(b[1] - b[0], a[1] - a[0]));
+        RangeSet copy = new RangeSet();
+        for (long[] range : list.subList(0, Math.min(n, list.size()))) {
+            copy.add(range[0], range[1]);
+        }
+        return copy;
+    }
+
+    /**
+     * Writes the set as a count followed by its [start, end) pairs.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(this.ranges.size());
+        for (Map.Entry<Long, Long> range : this.ranges.entrySet()) {
+            out.writeLong(range.getKey());
+            out.writeLong(range.getValue());
+        }
+    }
+
+    /**
+     * Reads a set written by writeTo.
+     */
+    public static RangeSet readFrom(DataInputStream in) throws IOException {
+        RangeSet set = new RangeSet();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            long start = in.readLong();
+            set.add(start, in.readLong());
+        }
+        return set;
+    }
+
+    /**
+     * Returns the ranges as [start, end) pairs in order.
+     */
+    public List<long[]> ranges() {
+        List<long[]> list = new ArrayList<long[]>(this.ranges.size());
+        for (Map.Entry<Long, Long> range : this.ranges.entrySet()) {
+            list.add(new long[] { range.getKey(), range.getValue() });
+        }
+        return list;
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Immutable snapshot of a peer's place in the ring: its successor list and its two predecessors.
+ *
+ * The peer keeps its current snapshot in an AtomicReference and replaces it whole by compare-and-set, so the ping
+ * threads, the TCP handlers and the console always read successors and predecessors that belong together
+ * without taking a lock, and two repairs racing each other never lose one of the changes. Every replacement has
+ * a version one higher than the snapshot it replaced.
+ */
+public final class RoutingState {
+    public final long version;
+    public final SuccessorList successors;
+    public final int first_pred;
+    public final int second_pred;
+
+    /**
+     * A change from one snapshot to the next, as returned by cdht.updateRouting.
+     */
+    public static final class Transition {
+        public final RoutingState before;
+        public final RoutingState after;
+
+        public Transition(RoutingState before, RoutingState after) {
+            this.before = before;
+            this.after = after;
+        }
+
+        /**
+         * Returns true if the change replaced the snapshot.
+         */
+        public boolean changed() {
+            return this.before != this.after;
+        }
+    }
+
+    /**
+     * Instantiates the first snapshot of a peer, which knows no predecessors yet.
+     *
+     * @param successors the successors the peer was started with.
+     */
+    public RoutingState(SuccessorList successors) {
+        this(0, successors, -1, -1);
+    }
+
+    private RoutingState(long version, SuccessorList successors, int first_pred, int second_pred) {
+        this.version = version;
+        this.successors = successors;
+        this.first_pred = first_pred;
+        this.second_pred = second_pred;
+    }
+
+    /**
+     * Returns the snapshot with a new successor list, or this snapshot if the list is the same.
+     *
+     * @param successors
+     */
+    public RoutingState withSuccessors(SuccessorList successors) {
+        if (successors == this.successors) {
+            return this;
+        }
+        return new RoutingState(this.version + 1, successors, this.first_pred, this.second_pred);
+    }
+
+    /**
+     * Returns the snapshot with new predecessors, or this snapshot if nothing changes.
+     *
+     * @param first_pred
+     * @param second_pred
+     */
+    public RoutingState withPredecessors(int first_pred, int second_pred) {
+        if (first_pred == this.first_pred && second_pred == this.second_pred) {
+            return this;
+        }
+        return new RoutingState(this.version + 1, this.successors, first_pred, second_pred);
+    }
+
+    /**
+     * Returns the snapshot with a new second predecessor, or this snapshot if it is the same.
+     *
+     * @param second_pred
+     */
+    public RoutingState withSecondPredecessor(int second_pred) {
+        return withPredecessors(this.first_pred, second_pred);
+    }
+
+    /**
+     * Returns the predecessors and first two successors in the form printed by the debug command.
+     */
+    public String toString() {
+        return String.format("[P2: %s P1: %s S1: %s S2: %s]", this.second_pred, this.first_pred,
+                this.successors.get(0), this.successors.get(1));
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Estimates the retransmission timeout (RTO) from measured round trip times using the Jacobson/Karels
+ * algorithm. Samples from retransmitted segments must not be added (Karn's rule), and each timeout of the same
+ * segment doubles its RTO.
+ */
+public class RttEstimator {
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final int K = 4;
+
+    private final long min_rto;
+    private final long max_rto;
+    private double srtt = -1;
+    private double rttvar = 0;
+    private long rto;
+
+    /**
+     * Instantiates an estimator with no samples yet.
+     * 
+     * @param initial_rto RTO in milliseconds used until the first sample.
+     * @param min_rto lower bound for the RTO in milliseconds.
+     * @param max_rto upper bound for the RTO in milliseconds, also caps any backoff.
+     */
+    public RttEstimator(long initial_rto, long min_rto, long max_rto) {
+        this.min_rto = min_rto;
+        this.max_rto = max_rto;
+        this.rto = clamp(initial_rto);
+    }
+
+    /**
+     * Adds a round trip time measurement and recomputes the RTO.
+     * 
+     * @param rtt measured round trip time in milliseconds.
+     */
+    public synchronized void addSample(double rtt) {
+        if (this.srtt < 0) {
+            this.srtt = rtt;
+            this.rttvar = rtt / 2;
+        } else {
+            this.rttvar = (1 - BETA) * this.rttvar + BETA * Math.abs(this.srtt - rtt);
+            this.srtt = (1 - ALPHA) * this.srtt + ALPHA * rtt;
+        }
+        this.rto = clamp((long) Math.ceil(this.srtt + K * this.rttvar));
+    }
+
+    /**
+     * Gets the RTO for a segment that has already timed out the given number of times, doubling it for each
+     * timeout.
+     * 
+     * @param timeouts number of times the segment has been retransmitted.
+     * @return backed off timeout in milliseconds.
+     */
+    public synchronized long getRto(int timeouts) {
+        return clamp(this.rto << Math.min(timeouts, 16));
+    }
+
+    /**
+     * Gets the current retransmission timeout in milliseconds.
+     * @return
+     */
+    public synchronized long getRto() {
+        return this.rto;
+    }
+
+    /**
+     * Gets the smoothed round trip time in milliseconds, or -1 if there are no samples yet.
+     * @return
+     */
+    public synchronized double getSrtt() {
+        return this.srtt;
+    }
+
+    /**
+     * Gets the round trip time variation in milliseconds.
+     * @return
+     */
+    public synchronized double getRttvar() {
+        return this.rttvar;
+    }
+
+    private long clamp(long value) {
+        return Math.max(this.min_rto, Math.min(this.max_rto, value));
+    }
+}
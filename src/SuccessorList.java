@@ -0,0 +1,151 @@
+import java.util.Arrays;
+
+/**
+ * The next few peers clockwise from a peer on the ring, nearest first.
+ *
+ * Keeping r successors lets a peer survive up to r - 1 of them failing at once: a dead successor is dropped and
+ * the next one takes its place straight away. The list is refilled from the first successor's own list, which
+ * every ping response carries, so it reaches back to length r one round trip after a failure. A peer never
+ * appears in its own list, so in a ring smaller than r + 1 peers the list is shorter.
+ *
+ * Lists are immutable, every change returns a new list, or the same list if nothing changed. They are held in
+ * the peer's RoutingState.
+ */
+public final class SuccessorList {
+    // Number of successors kept (override with -Dcdht.successors=N, at least 2).
+    public static final int LENGTH = Math.max(2, Integer.getInteger("cdht.successors", 3));
+
+    private final int peer_id;
+    private final int[] successors;
+
+    /**
+     * Instantiates a list holding the successors a peer was started with.
+     *
+     * @param peer_id the peer owning the list.
+     * @param successors its successors, nearest first.
+     */
+    public SuccessorList(int peer_id, int... successors) {
+        this.peer_id = peer_id;
+        this.successors = build(peer_id, successors[0], Arrays.copyOfRange(successors, 1, successors.length));
+    }
+
+    private SuccessorList(int[] successors, int peer_id) {
+        this.peer_id = peer_id;
+        this.successors = successors;
+    }
+
+    /**
+     * Returns successor i, or -1 if the list is shorter than that.
+     */
+    public int get(int i) {
+        return i < this.successors.length ? this.successors[i] : -1;
+    }
+
+    /**
+     * Returns a copy of the list.
+     */
+    public int[] toArray() {
+        return this.successors.clone();
+    }
+
+    /**
+     * Returns the position of a peer in the list, or -1 if it is not a successor.
+     */
+    public int indexOf(int id) {
+        return indexOf(this.successors, this.successors.length, id);
+    }
+
+    /**
+     * Returns the list with id as successor i, or as the last successor if the list is shorter than that.
+     */
+    public SuccessorList set(int i, int id) {
+        int[] updated = Arrays.copyOf(this.successors, Math.max(this.successors.length, Math.min(i + 1, LENGTH)));
+        updated[Math.min(i, updated.length - 1)] = id;
+        return changed(build(this.peer_id, updated[0], Arrays.copyOfRange(updated, 1, updated.length)));
+    }
+
+    /**
+     * Returns the list with a peer that has joined between this peer and its first successor at the front.
+     */
+    public SuccessorList insert(int id) {
+        if (id == this.peer_id || indexOf(id) >= 0) {
+            return this;
+        }
+        return changed(build(this.peer_id, id, this.successors));
+    }
+
+    /**
+     * Returns the list without a peer that has failed or left, the successors after it move up. The last
+     * successor is never removed.
+     */
+    public SuccessorList remove(int id) {
+        int index = indexOf(id);
+        if (index < 0 || this.successors.length == 1) {
+            return this;
+        }
+        int[] updated = new int[this.successors.length - 1];
+        System.arraycopy(this.successors, 0, updated, 0, index);
+        System.arraycopy(this.successors, index + 1, updated, index, updated.length - index);
+        return new SuccessorList(updated, this.peer_id);
+    }
+
+    /**
+     * Returns the list rebuilt from the first successor's own list, unless first is no longer the first
+     * successor.
+     *
+     * @param first the first successor.
+     * @param its_successors the successor list it reported.
+     */
+    public SuccessorList refresh(int first, int[] its_successors) {
+        if (this.successors[0] != first) {
+            return this;
+        }
+        return changed(build(this.peer_id, first, its_successors));
+    }
+
+    /**
+     * Returns the list as space separated ids, the form it takes in a ping response.
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int id : this.successors) {
+            sb.append(sb.length() == 0 ? "" : " ").append(id);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns this list if updated holds the same successors, otherwise a new list holding them.
+     */
+    private SuccessorList changed(int[] updated) {
+        return Arrays.equals(updated, this.successors) ? this : new SuccessorList(updated, this.peer_id);
+    }
+
+    /**
+     * Returns first followed by the successors after it, stopping at the peer itself or at LENGTH entries and
+     * skipping repeats.
+     */
+    private static int[] build(int peer_id, int first, int[] rest) {
+        int[] list = new int[LENGTH];
+        int n = 0;
+        list[n++] = first;
+        for (int i = 0; i < rest.length && n < LENGTH; i++) {
+            if (rest[i] == peer_id) {
+                break;
+            }
+            if (rest[i] >= 0 && indexOf(list, n, rest[i]) < 0) {
+                list[n++] = rest[i];
+            }
+        }
+        return Arrays.copyOf(list, n);
+    }
+
+    private static int indexOf(int[] list, int n, int id) {
+        for (int i = 0; i < n; i++) {
+            if (list[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
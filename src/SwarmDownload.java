@@ -0,0 +1,240 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Downloads one file from every peer that holds a copy at the same time.
+ *
+ * The file is split into chunks that are handed out on demand, so each source keeps up to PIPELINE_DEPTH
+ * chunks in flight and fast sources automatically end up serving more of the file. A chunk that takes much
+ * longer than the chunks before it is taken away from its source and handed to another one, and a source that
+ * keeps stalling or reports it has no copy is dropped. Every source sends into the same receive session, which
+ * tells us which ranges have arrived.
+ */
+public class SwarmDownload implements Runnable {
+    private static final String threadName = "SwarmDownload";
+    // How often the coordinator checks the session for finished chunks, in milliseconds.
+    private static final long POLL_INTERVAL = 20;
+    // Chunks outstanding per source.
+    private static final int PIPELINE_DEPTH = 2;
+    // A chunk is considered stalled after this many times the average chunk time, but never sooner than
+    // MIN_CHUNK_TIMEOUT milliseconds.
+    private static final int STALL_FACTOR = 4;
+    private static final long MIN_CHUNK_TIMEOUT = 2000;
+    // Sources that stall this many chunks are dropped.
+    private static final int MAX_STALLS = 2;
+    private Thread t;
+
+    private cdht peer;
+    private int file_name;
+    private long file_len;
+    private TransferSession session;
+    private final ArrayDeque<Chunk> pending = new ArrayDeque<Chunk>();
+    private final Map<Integer, Source> sources = new LinkedHashMap<Integer, Source>();
+    // Average time to complete a chunk over all sources, in milliseconds.
+    private double avg_chunk_time = -1;
+    private volatile boolean shutdown = false;
+
+    /**
+     * Instantiates a swarm download.
+     *
+     * @param peer the requesting peer.
+     * @param session receive session every source sends into.
+     * @param file_len length of the file.
+     * @param holders ids of the peers that hold a copy, the owner first.
+     */
+    public SwarmDownload(cdht peer, TransferSession session, long file_len, List<Integer> holders) {
+        this.peer = peer;
+        this.session = session;
+        this.file_name = session.getFileName();
+        this.file_len = file_len;
+        for (int holder : holders) {
+            if (holder != peer.getPeer() && holder >= 0 && !this.sources.containsKey(holder)) {
+                this.sources.put(holder, new Source(holder));
+            }
+        }
+        // Chunks are whole numbers of segments so they line up with the segments the sources send. Only the
+        // ranges the session is missing are fetched, so a resumed download skips what arrived before.
+        long chunk_len = Math.max(1, cdht.CHUNK_SIZE / peer.getMSS()) * (long) peer.getMSS();
+        for (long[] range : session.missing(0, file_len)) {
+            for (long offset = range[0]; offset < range[1]; offset += chunk_len) {
+                this.pending.add(new Chunk(offset, Math.min(chunk_len, range[1] - offset)));
+            }
+        }
+    }
+
+    /**
+     * Runs the main thread loop.
+     */
+    public void run() {
+        System.out.println("We now start receiving the file from " + this.sources.size() + " peers .....");
+        while (!this.shutdown && !this.session.isComplete()) {
+            synchronized (this) {
+                collectFinishedChunks();
+                reassignStalledChunks();
+                if (this.sources.isEmpty()) {
+                    System.out.println("No peer is able to send file " + this.file_name + ", download abandoned.");
+                    this.peer.endSwarm(this.session.getSessionId(), false);
+                    return;
+                }
+                assignChunks();
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        synchronized (this) {
+            for (Source source : this.sources.values()) {
+                System.out.println(String.format("Peer %d sent %d chunks (%d bytes).", source.id,
+                        source.chunks_done, source.bytes_done));
+            }
+        }
+        this.peer.endSwarm(this.session.getSessionId(), true);
+    }
+
+    /**
+     * Starts the thread in the given scope.
+     */
+    public void start(TaskScope scope) {
+        if (this.t == null) {
+            this.t = scope.fork(this, threadName);
+        }
+    }
+
+    /**
+     * Stops the download without waiting for it to finish.
+     */
+    public void shutdown() {
+        this.shutdown = true;
+    }
+
+    /**
+     * Drops a source that reported it has no copy of the file and queues its chunks for the remaining sources.
+     *
+     * @param id the source peer.
+     */
+    public synchronized void sourceUnavailable(int id) {
+        Source source = this.sources.remove(id);
+        if (source != null) {
+            System.out.println("Peer " + id + " does not have file " + this.file_name + ".");
+            requeue(source);
+        }
+    }
+
+    /**
+     * Marks chunks whose bytes have all arrived as done and updates the chunk time statistics.
+     */
+    private void collectFinishedChunks() {
+        long now = System.currentTimeMillis();
+        for (Source source : this.sources.values()) {
+            Iterator<Chunk> it = source.assigned.iterator();
+            while (it.hasNext()) {
+                Chunk chunk = it.next();
+                if (this.session.contains(chunk.offset, chunk.offset + chunk.len)) {
+                    it.remove();
+                    source.chunks_done++;
+                    source.bytes_done += chunk.len;
+                    source.stalls = 0;
+                    double elapsed = now - chunk.assigned_at;
+                    this.avg_chunk_time = this.avg_chunk_time < 0 ? elapsed
+                            : 0.875 * this.avg_chunk_time + 0.125 * elapsed;
+                }
+            }
+        }
+        // Chunks that were given up on may still have been completed by their first source.
+        Iterator<Chunk> it = this.pending.iterator();
+        while (it.hasNext()) {
+            Chunk chunk = it.next();
+            if (this.session.contains(chunk.offset, chunk.offset + chunk.len)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Takes stalled chunks away from slow sources so another source can fetch them, dropping sources that stall
+     * repeatedly.
+     */
+    private void reassignStalledChunks() {
+        long now = System.currentTimeMillis();
+        long timeout = (long) Math.max(MIN_CHUNK_TIMEOUT, STALL_FACTOR * this.avg_chunk_time);
+        Iterator<Source> sources = this.sources.values().iterator();
+        while (sources.hasNext()) {
+            Source source = sources.next();
+            Chunk oldest = source.assigned.peekFirst();
+            if (oldest == null || now - oldest.assigned_at < timeout) {
+                continue;
+            }
+            source.assigned.pollFirst();
+            this.pending.addFirst(oldest);
+            source.stalls++;
+            if (source.stalls >= MAX_STALLS && this.sources.size() > 1) {
+                System.out.println("Peer " + source.id + " is too slow, no longer downloading from it.");
+                sources.remove();
+                requeue(source);
+            }
+        }
+    }
+
+    /**
+     * Tops up every source to PIPELINE_DEPTH outstanding chunks. Sources are visited in order of how many
+     * chunks they have completed, so the fastest source gets first pick.
+     */
+    private void assignChunks() {
+        List<Source> by_speed = new ArrayList<Source>(this.sources.values());
+        by_speed.sort((a, b) -> Long.compare(b.chunks_done, a.chunks_done));
+        for (Source source : by_speed) {
+            while (source.assigned.size() < PIPELINE_DEPTH && !this.pending.isEmpty()) {
+                Chunk chunk = this.pending.pollFirst();
+                chunk.assigned_at = System.currentTimeMillis();
+                source.assigned.addLast(chunk);
+                this.peer.requestChunk(source.id, this.file_name, this.session.getSessionId(), chunk.offset,
+                        chunk.len);
+            }
+        }
+    }
+
+    /**
+     * Returns the chunks a source still had outstanding to the pending queue.
+     */
+    private void requeue(Source source) {
+        while (!source.assigned.isEmpty()) {
+            this.pending.addFirst(source.assigned.pollLast());
+        }
+    }
+
+    /**
+     * A range of the file fetched from a single source.
+     */
+    private static class Chunk {
+        private final long offset;
+        private final long len;
+        private long assigned_at;
+
+        private Chunk(long offset, long len) {
+            this.offset = offset;
+            this.len = len;
+        }
+    }
+
+    /**
+     * A peer serving chunks of the file.
+     */
+    private static class Source {
+        private final int id;
+        private final ArrayDeque<Chunk> assigned = new ArrayDeque<Chunk>();
+        private long chunks_done = 0;
+        private long bytes_done = 0;
+        private int stalls = 0;
+
+        private Source(int id) {
+            this.id = id;
+        }
+    }
+}
\ No newline at end of file
@@ -1,12 +1,31 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 public class TCPServer implements Runnable {
 
     private static final String threadName = "TCPServer";
+    // Initial and maximum size of the buffer holding a connection's unfinished message, in bytes.
+    private static final int READ_BUFFER_SIZE = 1024;
+    private static final int MAX_MESSAGE_LEN = 64 * 1024;
+    // Connections the kernel queues for us while the selector thread catches up with accepting them.
+    private static final int ACCEPT_BACKLOG = 1024;
     private Thread t;
     private cdht peer;
-    private ServerSocket TCPSocket;
+    private ServerSocketChannel TCPSocket;
+    private Selector selector;
+    private ExecutorService handlers;
     private volatile boolean shutdown = false;
 
     // Used for acknowledging that both successors have received a graceful departure message.
@@ -44,23 +63,179 @@ public class TCPServer implements Runnable {
      */
     public void shutdown() {
         this.shutdown = true;
+        if (this.selector != null) {
+            this.selector.wakeup();
+        }
     }
 
     /**
-     * Starts an ongoing TCP server.
+     * Starts an ongoing TCP server. A single thread accepts connections and reads from all of them without
+     * blocking, buffering partial messages until their newline arrives. Complete messages are handed to a pool
+     * of handler threads, so a slow handler or a quiet connection never holds up the others.
      */
     private void startTCPServer() {
         int port = cdht.getPort(peer.getPeer());
+        this.handlers = TaskScope.newExecutor(threadName + "Handler", cdht.TCP_HANDLERS);
         try {
-            this.TCPSocket = new ServerSocket(port, 0, InetAddress.getByName("localhost"));
+            this.selector = Selector.open();
+            this.TCPSocket = ServerSocketChannel.open();
+            this.TCPSocket.bind(new InetSocketAddress(InetAddress.getByName("localhost"), port), ACCEPT_BACKLOG);
+            this.TCPSocket.configureBlocking(false);
+            this.TCPSocket.register(this.selector, SelectionKey.OP_ACCEPT);
             while (!this.shutdown) {
-                Socket tcps = TCPSocket.accept();
-                BufferedReader tcp_reader = new BufferedReader(new InputStreamReader(tcps.getInputStream()));
-                String tcp_message = tcp_reader.readLine().trim();
-                parseTCPRequest(tcp_message);
+                this.selector.select();
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptConnection();
+                    } else if (key.isReadable()) {
+                        readMessages(key);
+                    }
+                }
             }
         } catch (IOException e) {
             return;
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Accepts every pending connection and registers it for reading.
+     */
+    private void acceptConnection() throws IOException {
+        SocketChannel channel;
+        while ((channel = this.TCPSocket.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.register(this.selector, SelectionKey.OP_READ, new Connection());
+        }
+    }
+
+    /**
+     * Reads whatever a connection has sent and dispatches each complete line. The connection is closed when the
+     * other peer closes it or sends a message longer than MAX_MESSAGE_LEN.
+     * 
+     * @param key the readable connection's key.
+     */
+    private void readMessages(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        try {
+            int read;
+            while ((read = channel.read(connection.buffer)) > 0) {
+                connection.extractMessages();
+                if (!connection.buffer.hasRemaining() && !connection.grow()) {
+                    throw new IOException("Message too long");
+                }
+            }
+            if (read < 0) {
+                key.cancel();
+                channel.close();
+            }
+        } catch (IOException e) {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e2) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes the server socket and every connection, and stops the handlers.
+     */
+    private void closeAll() {
+        try {
+            if (this.selector != null) {
+                for (SelectionKey key : this.selector.keys()) {
+                    key.channel().close();
+                }
+                this.selector.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.handlers.shutdown();
+    }
+
+    /**
+     * Read state of one accepted connection. Messages from the same connection are handled in the order they were
+     * sent, one at a time, while different connections are handled in parallel.
+     */
+    private class Connection implements Runnable {
+        private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ArrayDeque<String> pending = new ArrayDeque<String>();
+        private boolean running = false;
+
+        /**
+         * Takes every complete line out of the buffer, keeping a trailing partial line for the next read.
+         */
+        private void extractMessages() {
+            this.buffer.flip();
+            int start = 0;
+            for (int i = 0; i < this.buffer.limit(); i++) {
+                if (this.buffer.get(i) == '\n') {
+                    String line = new String(this.buffer.array(), start, i - start, StandardCharsets.US_ASCII).trim();
+                    if (!line.isEmpty()) {
+                        dispatch(line);
+                    }
+                    start = i + 1;
+                }
+            }
+            this.buffer.position(start);
+            this.buffer.compact();
+        }
+
+        /**
+         * Doubles the buffer so a long message fits, returning false if it is already at MAX_MESSAGE_LEN.
+         */
+        private boolean grow() {
+            if (this.buffer.capacity() >= MAX_MESSAGE_LEN) {
+                return false;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(MAX_MESSAGE_LEN, 2 * this.buffer.capacity()));
+            this.buffer.flip();
+            larger.put(this.buffer);
+            this.buffer = larger;
+            return true;
+        }
+
+        /**
+         * Queues a message, starting a handler for this connection if none is running.
+         */
+        private synchronized void dispatch(String message) {
+            this.pending.add(message);
+            if (!this.running) {
+                this.running = true;
+                handlers.execute(this);
+            }
+        }
+
+        /**
+         * Handles queued messages until there are none left.
+         */
+        public void run() {
+            while (true) {
+                String message;
+                synchronized (this) {
+                    message = this.pending.poll();
+                    if (message == null) {
+                        this.running = false;
+                        return;
+                    }
+                }
+                try {
+                    parseTCPRequest(message);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
         }
     }
 
@@ -72,46 +247,154 @@ public class TCPServer implements Runnable {
     private void parseTCPRequest(String tcp_message) {
 
         String message_type = extractType(tcp_message.trim());
-        int[] message_fields = getMessageFields(tcp_message.trim());
+        long[] message_fields = getMessageFields(tcp_message.trim());
+        Metrics.message(message_type);
 
         if (message_type.equals("FR")) {
             processFileRequest(message_fields);
         } else if (message_type.equals("GQ")) {
             processGracefulQuit(message_fields);
-        } else if (message_type.equals("DP")) {
-            processDeadPeer(message_fields);
+        } else if (message_type.equals("FC")) {
+            processChunkRequest(message_fields);
+        } else if (message_type.equals("FN")) {
+            this.peer.chunkUnavailable((int) message_fields[0], (int) message_fields[2]);
+        } else if (message_type.equals("FS")) {
+            this.peer.findSuccessor((int) message_fields[1], (int) message_fields[2], (int) message_fields[3],
+                    (int) message_fields[4]);
+        } else if (message_type.equals("FB") || message_type.equals("FA")) {
+            processBatch(message_type.equals("FB"), message_fields);
+        } else if (message_type.equals("FU")) {
+            this.peer.updateFinger((int) message_fields[1], (int) message_fields[2]);
+        } else if (message_type.equals("KH")) {
+            this.peer.keysOffered((int) message_fields[0], fileList(message_fields));
+        } else if (message_type.equals("KR")) {
+            this.peer.sendKeys((int) message_fields[0], fileList(message_fields));
         }
     }
 
     /**
      * Processes a file request from a peer.
      * 
-     * @param message_fields an array of three integers that store [sending_peer] [file_name] [has_file]
+     * @param message_fields an array that stores [sending_peer] [file_name] [has_file] [query] [swarm] [hops]
+     *                       [request_id], followed by [file_size] [holder]... in a swarm response, or by [count]
+     *                       [start] [end]... in a query resuming an interrupted download.
      */
-    private void processFileRequest(int[] message_fields) {
-        int sending_peer = message_fields[0];
-        int file_name = message_fields[1];
-        int has_file = message_fields[2];
-        int query = message_fields[3];
+    private void processFileRequest(long[] message_fields) {
+        int sending_peer = (int) message_fields[0];
+        int file_name = (int) message_fields[1];
+        int has_file = (int) message_fields[2];
+        int query = (int) message_fields[3];
+        int swarm = message_fields.length > 4 ? (int) message_fields[4] : 0;
+        int hops = message_fields.length > 5 ? (int) message_fields[5] : 0;
+        int request_id = message_fields.length > 6 ? (int) message_fields[6] : 0;
+        RangeSet received = query == 1 ? receivedRanges(message_fields) : null;
 
         if (query == 1) {
             // The message was a query.
-            if (has_file == 1) {
+            if (has_file == 1 && swarm == 1) {
+                // Tell the requester who can send the file, it will fetch chunks from each of them.
+                this.sendSwarmResponseMessage(sending_peer, file_name, hops, request_id);
+                this.peer.recordCopy(file_name, sending_peer);
+            } else if (has_file == 1) {
                 // If we have the file then send a response to the sending peer.
-                this.sendResponseMessage(sending_peer, file_name);
+                this.sendResponseMessage(sending_peer, file_name, hops, request_id);
                 // Begin transferring the file.
-                this.peer.initiateFileTransfer(sending_peer, file_name);
+                this.peer.initiateFileTransfer(sending_peer, file_name, received);
+                this.peer.recordCopy(file_name, sending_peer);
             } else {
                 System.out.println("File " + file_name + " is not stored here.");
                 System.out.println("File request mesage has been forwarded to my successor.");
-                this.peer.fileRequest(file_name, sending_peer);
+                this.peer.fileRequest(file_name, sending_peer, swarm, hops + 1, request_id, received);
             }
         } else {
             // The message was a response message.
             System.out.println("Received a response message from peer " + sending_peer +
                                " which has the file " + file_name + ".");
-            System.out.println("We now start receiving the file .....");
+            this.peer.recordLookup(request_id, file_name, sending_peer, hops);
+            if (swarm == 1 && message_fields.length > 7) {
+                List<Integer> holders = new ArrayList<Integer>();
+                for (int i = 8; i < message_fields.length; i++) {
+                    holders.add((int) message_fields[i]);
+                }
+                this.peer.startSwarm(file_name, message_fields[7], holders);
+            } else {
+                System.out.println("We now start receiving the file .....");
+            }
+        }
+    }
+
+    /**
+     * Reads the ranges a requester already holds from a file request query.
+     * 
+     * @param message_fields the file request fields, [count] [start] [end]... following [request_id].
+     * @return the ranges, or null if the query carries none.
+     */
+    private RangeSet receivedRanges(long[] message_fields) {
+        if (message_fields.length <= 7) {
+            return null;
+        }
+        RangeSet received = new RangeSet();
+        int count = (int) message_fields[7];
+        for (int i = 0; i < count && 9 + 2 * i < message_fields.length; i++) {
+            received.add(message_fields[8 + 2 * i], message_fields[9 + 2 * i]);
+        }
+        return received;
+    }
+
+    /**
+     * Reads the files listed in a key handoff message.
+     * 
+     * @param message_fields an array that stores [sending_peer] [count] followed by the files.
+     */
+    private List<Integer> fileList(long[] message_fields) {
+        List<Integer> files = new ArrayList<Integer>();
+        for (int i = 0; i < message_fields[1] && 2 + i < message_fields.length; i++) {
+            files.add((int) message_fields[2 + i]);
+        }
+        return files;
+    }
+
+    /**
+     * Processes a batch lookup, or the answers to one of ours.
+     * 
+     * @param lookup true for a batch lookup (FB), false for answers (FA).
+     * @param message_fields an array that stores [origin] [batch_id] [hops] [owned count] [pending count]
+     *                       [resolved count] followed by the owned files, the pending files and [file] [owner]
+     *                       [hops] [found] for every resolved file.
+     */
+    private void processBatch(boolean lookup, long[] message_fields) {
+        int owned_count = (int) message_fields[3];
+        int pending_count = (int) message_fields[4];
+        int resolved_count = (int) message_fields[5];
+        List<Integer> owned = new ArrayList<Integer>();
+        List<Integer> pending = new ArrayList<Integer>();
+        List<long[]> resolved = new ArrayList<long[]>();
+        int i = 6;
+        for (int n = 0; n < owned_count; n++) {
+            owned.add((int) message_fields[i++]);
+        }
+        for (int n = 0; n < pending_count; n++) {
+            pending.add((int) message_fields[i++]);
         }
+        for (int n = 0; n < resolved_count; n++, i += 4) {
+            resolved.add(Arrays.copyOfRange(message_fields, i, i + 4));
+        }
+        if (lookup) {
+            this.peer.processBatch((int) message_fields[0], (int) message_fields[1], (int) message_fields[2],
+                    owned, pending, resolved);
+        } else {
+            this.peer.batchAnswered((int) message_fields[1], resolved);
+        }
+    }
+
+    /**
+     * Processes a request for one chunk of a swarm download.
+     * 
+     * @param message_fields an array that stores [sending_peer] [file_name] [session_id] [offset] [length]
+     */
+    private void processChunkRequest(long[] message_fields) {
+        this.peer.serveChunk((int) message_fields[0], (int) message_fields[1], (int) message_fields[2],
+                message_fields[3], message_fields[4]);
     }
 
     /**
@@ -119,11 +402,11 @@ public class TCPServer implements Runnable {
      * message_fields is an array of three integers that store [sending_peer] [first_pred] [second_pred] [query_flag]
      * @param message_fields 
      */
-    private void processGracefulQuit(int[] message_fields) {
-        int sending_peer = message_fields[0];
-        int first_pred = message_fields[1];
-        int second_pred = message_fields[2];
-        int query_flag = message_fields[3];
+    private synchronized void processGracefulQuit(long[] message_fields) {
+        int sending_peer = (int) message_fields[0];
+        int first_pred = (int) message_fields[1];
+        int second_pred = (int) message_fields[2];
+        int query_flag = (int) message_fields[3];
 
         if (query_flag == 1) {
             System.out.println(String.format("Peer %s will depart from the network.", sending_peer));
@@ -132,9 +415,14 @@ public class TCPServer implements Runnable {
             System.out.println("My first successor is now peer " + first_pred);
             System.out.println("My second successor is now peer " + second_pred);
     
+            // Fingers pointing at the departing peer move on to the peer that followed it.
+            this.peer.removeFinger(sending_peer,
+                    sending_peer == this.peer.getFirstSuccessor() ? first_pred : second_pred);
+            // Tell the rest of the ring on our pings.
+            this.peer.announceMember(Membership.LEAVE, sending_peer);
+
             // Update the successors of the peer.
-            this.peer.setFirstSuccessor(first_pred);
-            this.peer.setSecondSuccessor(second_pred);
+            this.peer.setSuccessors(first_pred, second_pred);
 
             // Send an acknowledgement back to the quitting peer that we have received the quit message.
             sendGracefulQuitAck(sending_peer);
@@ -149,35 +437,9 @@ public class TCPServer implements Runnable {
     }
 
     private void sendGracefulQuitAck(int sending_peer) {
-        try {
-            // Set up the TCP Socket
-            Socket sendSocket = new Socket("localhost", cdht.getPort(sending_peer));
-            DataOutputStream messageStream = new DataOutputStream(sendSocket.getOutputStream());
-            // [GQ] [SENDING_PEER] [FIRST_SUCC = 0 (unused)] [SECOND_SUCC = 0 (unused)] [QUERY_FLAG = 0]
-            String quit_message = "GQ " + this.peer.getPeer() + " " + 0 + " " + 0 + " " + 0;
-            messageStream.writeBytes(quit_message + "\n");
-            sendSocket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    /**
-     * Server side handing of the dead peer.
-     * 
-     * @param message_fields an array of three integers that store [sending_peer] [query_flag] [new_successor]
-     */
-    private void processDeadPeer(int[] message_fields) {
-
-        int sending_peer = message_fields[0];
-        int query_flag = message_fields[1];
-        int new_successor = message_fields[2];
-
-        if (query_flag == 1) {
-            processKillQuery(sending_peer);
-        } else {
-            processKillResponse(new_successor);
-        }
+        // [GQ] [SENDING_PEER] [FIRST_SUCC = 0 (unused)] [SECOND_SUCC = 0 (unused)] [QUERY_FLAG = 0]
+        String quit_message = "GQ " + this.peer.getPeer() + " " + 0 + " " + 0 + " " + 0;
+        this.peer.sendTCPMessage(sending_peer, quit_message);
     }
 
     /**
@@ -185,68 +447,48 @@ public class TCPServer implements Runnable {
      * 
      * @param sending_peer The peer id of the requesting peer.
      * @param file_name The name of the file to be transferred.
+     * @param hops The number of hops the request took.
+     * @param request_id The id the requesting peer gave the request.
      */
-    private void sendResponseMessage(int sending_peer, int file_name) {
+    private void sendResponseMessage(int sending_peer, int file_name, int hops, int request_id) {
         System.out.println("File " + file_name + " is stored here.");
         System.out.println("A response message, destined for peer " + sending_peer + ", has been sent.");
-        try {
-            Socket sendSocket = new Socket("localhost", cdht.getPort(sending_peer));
-            DataOutputStream messageStream = new DataOutputStream(sendSocket.getOutputStream());
-            // Create the TCP Message and send it.
-            String msg = createFileResponse(sending_peer, file_name);
-            messageStream.writeBytes(msg);
-            sendSocket.close();
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private String createFileResponse(int sending_peer, int file_name) {
-        // FR [peer_id] [file_name] [1 (empty value for has_file)] [0 => it is a resopnse message]
-        return "FR " + peer.getPeer() + " " + file_name + " " + 1 + " " + 0;
+        this.peer.sendTCPMessage(sending_peer, createFileResponse(sending_peer, file_name, hops, request_id));
     }
 
     /**
-     * Function to send a TCP response message to a querying peer.
-     * @param sending_peer
+     * Sends a swarm response telling the requesting peer the size of the file and which peers it can fetch
+     * chunks from.
+     * 
+     * @param sending_peer The peer id of the requesting peer.
+     * @param file_name The name of the file to be transferred.
+     * @param hops The number of hops the request took.
+     * @param request_id The id the requesting peer gave the request.
      */
-    private void processKillQuery(int sending_peer) {
-        // Create a TCP socket to send the
-        try {
-            Socket sendSocket = new Socket("localhost", cdht.getPort(sending_peer));
-            DataOutputStream messageStream = new DataOutputStream(sendSocket.getOutputStream());
-            // Create the TCP Message and send it.
-            String msg = createKillResponse();
-            messageStream.writeBytes(msg);
-            sendSocket.close();
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void sendSwarmResponseMessage(int sending_peer, int file_name, int hops, int request_id) {
+        File file = FileSenderUDP.localCopy(file_name);
+        if (file == null) {
+            System.out.println("File " + file_name + " should be stored here but is missing.");
+            return;
+        }
+        System.out.println("File " + file_name + " is stored here.");
+        System.out.println("A swarm response message, destined for peer " + sending_peer + ", has been sent.");
+        // FR [peer_id] [file_name] [1] [0 => response] [1 => swarm] [hops] [request_id] [file_size] [holder]...
+        StringBuilder msg = new StringBuilder("FR " + peer.getPeer() + " " + file_name + " 1 0 1 " + hops + " "
+                + request_id + " " + file.length());
+        for (int holder : this.peer.swarmHolders(file_name)) {
+            msg.append(" ").append(holder);
         }
+        this.peer.sendTCPMessage(sending_peer, msg.toString());
     }
 
-    /**
-     * Function to process a TCP kill response that sets the peers new successors.
-     * @param new_successor
-     * @param sending_peer
-     */
-    private void processKillResponse(int new_successor) {
-        System.out.println("My second successor is now peer " + new_successor + ".");
-        this.peer.setSecondSuccessor(new_successor);
+    private String createFileResponse(int sending_peer, int file_name, int hops, int request_id) {
+        // FR [peer_id] [file_name] [1 (empty value for has_file)] [0 => it is a resopnse message] [0 => no swarm]
+        // [hops] [request_id]
+        return "FR " + peer.getPeer() + " " + file_name + " " + 1 + " " + 0 + " " + 0 + " " + hops + " "
+                + request_id;
     }
 
-    /**
-     * Function to create a TCP kill response message to send back to querying peer.
-     * @return message in format outlined in cdht "DP". [DP] [sending_peer] [query_flag] [new_successor_id]
-     */
-    private String createKillResponse() {
-        // Creates a responding message with data about peers next sucessor.
-        return "DP" + " " + this.peer.getPeer() + " " + 0 + " " + this.peer.getFirstSuccessor();
-    }
-    
     //====================HELPER FUNCTIONS FOR EXTRACTING TCP MESSAGE DATA==============================//
 
     /**
@@ -262,15 +504,16 @@ public class TCPServer implements Runnable {
      * Extracts the message data from a tcp kill peer message received from another peer.
      * 
      * @param tcp_message
-     * @return intger array with the 3 data fields [sending_peer] [query flag] [new successor]
+     * @return array of the numeric fields after the message type, e.g [sending_peer] [query flag] [new successor].
+     *         Fields are longs so file sizes and offsets fit.
      */
-    private int[] getMessageFields(String tcp_message) {
+    private long[] getMessageFields(String tcp_message) {
         // 
         String[] string_fields = tcp_message.split(" ");
-        int[] msg_field_data = new int[string_fields.length];
+        long[] msg_field_data = new long[string_fields.length - 1];
 
         for (int i = 1; i < string_fields.length; i++) {
-            msg_field_data[i-1] = Integer.parseInt(string_fields[i]);
+            msg_field_data[i-1] = Long.parseLong(string_fields[i]);
         }
         return msg_field_data;
     }
@@ -0,0 +1,162 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads a peer runs its I/O on, and groups the short lived ones so they end with the peer.
+ *
+ * With -Dcdht.threads=virtual the TCP message handlers, the threads watching each pooled connection, the file
+ * senders, swarm downloads and key handoffs forked into a peer's transfers scope, the ping sender's selector loop
+ * and the join and metrics snapshot threads run on virtual threads, which cost a few hundred bytes each instead
+ * of a whole OS thread, so a peer can keep tens of thousands of connections and transfers going at once. Virtual
+ * threads need Java 21, on an older runtime the peer says so and carries on with platform threads. The ping and
+ * TCP server loops, the fix-fingers thread and the transfer log writer always use platform threads.
+ *
+ * A scope owns the threads forked into it: closing the scope interrupts every one of them that is still running
+ * and waits for them to finish, so nothing started on behalf of a peer outlives it.
+ */
+public class TaskScope {
+    public static final boolean VIRTUAL = "virtual".equalsIgnoreCase(System.getProperty("cdht.threads", "platform"))
+            && virtualThreadsAvailable();
+
+    // Thread.ofVirtual(), Thread.Builder.name(String), Thread.Builder.unstarted(Runnable) and
+    // Executors.newThreadPerTaskExecutor(ThreadFactory), looked up at run time so the peer still runs on Java 17.
+    private static Method of_virtual;
+    private static Method builder_name;
+    private static Method builder_unstarted;
+    private static Method thread_per_task_executor;
+
+    private final String name;
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+
+    /**
+     * Instantiates an empty scope.
+     *
+     * @param name describes the threads of the scope in messages.
+     */
+    public TaskScope(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Starts a task on a new thread owned by this scope.
+     *
+     * @param task
+     * @param thread_name
+     * @return the thread running the task, or null if the scope is already closed and the task was not started.
+     */
+    public Thread fork(Runnable task, String thread_name) {
+        if (this.closed) {
+            return null;
+        }
+        Thread[] self = new Thread[1];
+        Thread t = newThread(() -> {
+            try {
+                task.run();
+            } finally {
+                this.threads.remove(self[0]);
+            }
+        }, thread_name, false);
+        self[0] = t;
+        this.threads.add(t);
+        t.start();
+        // A close that ran between the check above and the add has not seen this thread.
+        if (this.closed) {
+            t.interrupt();
+        }
+        return t;
+    }
+
+    /**
+     * Returns the number of threads of this scope that are still running.
+     */
+    public int size() {
+        return this.threads.size();
+    }
+
+    /**
+     * Closes the scope, interrupting every thread still running in it and waiting for them to finish.
+     *
+     * @param timeout longest time to wait in milliseconds.
+     */
+    public void close(long timeout) {
+        this.closed = true;
+        for (Thread t : this.threads) {
+            t.interrupt();
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        for (Thread t : this.threads) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                t.join(remaining);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        if (!this.threads.isEmpty()) {
+            System.err.println(this.threads.size() + " " + this.name + " did not stop in time.");
+        }
+    }
+
+    /**
+     * Returns a new, unstarted thread, virtual if virtual threads are enabled.
+     *
+     * @param task
+     * @param thread_name
+     * @param daemon whether a platform thread is a daemon, virtual threads always are.
+     */
+    public static Thread newThread(Runnable task, String thread_name, boolean daemon) {
+        if (VIRTUAL) {
+            try {
+                Object builder = builder_name.invoke(of_virtual.invoke(null), thread_name);
+                return (Thread) builder_unstarted.invoke(builder, task);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Cannot create a virtual thread", e);
+            }
+        }
+        Thread t = new Thread(task, thread_name);
+        t.setDaemon(daemon);
+        return t;
+    }
+
+    /**
+     * Returns an executor for short tasks: one virtual thread per task if virtual threads are enabled, otherwise
+     * a fixed pool of daemon platform threads.
+     *
+     * @param thread_name
+     * @param threads size of the platform thread pool.
+     */
+    public static ExecutorService newExecutor(String thread_name, int threads) {
+        ThreadFactory factory = task -> newThread(task, thread_name, true);
+        if (VIRTUAL) {
+            try {
+                return (ExecutorService) thread_per_task_executor.invoke(null, factory);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Cannot create a virtual thread executor", e);
+            }
+        }
+        return Executors.newFixedThreadPool(threads, factory);
+    }
+
+    private static boolean virtualThreadsAvailable() {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            of_virtual = Thread.class.getMethod("ofVirtual");
+            builder_name = builder.getMethod("name", String.class);
+            builder_unstarted = builder.getMethod("unstarted", Runnable.class);
+            thread_per_task_executor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return true;
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads need Java 21 or later, running on platform threads instead.");
+            return false;
+        }
+    }
+}
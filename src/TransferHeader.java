@@ -0,0 +1,194 @@
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Encodes and decodes the fixed binary header carried by file segments and their ACKs. Every field is read and
+ * written in place at an absolute index, so handling a packet allocates nothing.
+ *
+ * Header layout (big endian, TRANSFER_HEADER_LEN bytes):
+ *
+ * [MAGIC (1)] [TYPE (1)] [FLAGS (2)] [SESSION ID (4)] [FILE NAME (4)] [OFFSET (8)] [LENGTH (4)] [CHECKSUM (4)]
+ *
+ * DATA: OFFSET is the position of the payload in the file and LENGTH its size.
+ * ACK:  OFFSET and LENGTH echo the segment that triggered the ACK. The header is followed by
+ *       [RWND (4)] [CUMULATIVE (8)] [BLOCKS (2)] then BLOCKS pairs of [START (8)] [END (8)]. RWND is the receive
+ *       window in bytes the receiver can currently accept, every byte before CUMULATIVE has been received, and
+ *       each block is a range [START, END) received beyond it. The first block holds the triggering segment.
+ *
+ * CHECKSUM is the CRC32C of the header bytes before it followed by the payload, if any.
+ */
+public final class TransferHeader {
+    public static final byte MAGIC = (byte) 0xCD;
+    public static final byte TYPE_DATA = 1;
+    public static final byte TYPE_ACK = 2;
+    public static final short FLAG_EOF = 1;
+
+    private static final int MAGIC_POS = 0;
+    private static final int TYPE_POS = 1;
+    private static final int FLAGS_POS = 2;
+    private static final int SESSION_POS = 4;
+    private static final int FILE_POS = 8;
+    private static final int OFFSET_POS = 12;
+    private static final int LENGTH_POS = 20;
+    private static final int CHECKSUM_POS = 24;
+    private static final int RWND_POS = 28;
+    private static final int CUMULATIVE_POS = 32;
+    private static final int BLOCKS_POS = 40;
+    private static final int SACK_POS = 42;
+    private static final int BLOCK_LEN = 16;
+
+    // Most SACK blocks an ACK carries, and the length of an ACK without blocks and with the most blocks.
+    public static final int MAX_SACK_BLOCKS = 16;
+    public static final int ACK_LEN = SACK_POS;
+    public static final int MAX_ACK_LEN = SACK_POS + MAX_SACK_BLOCKS * BLOCK_LEN;
+
+    private TransferHeader() {
+    }
+
+    /**
+     * Writes a header at the start of buf and seals it with a checksum over the header and payload. The buffer is
+     * left flipped and ready to send, the payload's position is left unchanged.
+     *
+     * @param buf buffer of at least TRANSFER_HEADER_LEN bytes to write the header into.
+     * @param payload the segment data, or null if there is none.
+     * @param crc checksum instance to reuse.
+     */
+    public static ByteBuffer write(ByteBuffer buf, byte type, short flags, int session_id, int file_name,
+            long offset, int length, ByteBuffer payload, CRC32C crc) {
+        buf.clear();
+        buf.put(MAGIC_POS, MAGIC);
+        buf.put(TYPE_POS, type);
+        buf.putShort(FLAGS_POS, flags);
+        buf.putInt(SESSION_POS, session_id);
+        buf.putInt(FILE_POS, file_name);
+        buf.putLong(OFFSET_POS, offset);
+        buf.putInt(LENGTH_POS, length);
+
+        crc.reset();
+        buf.limit(CHECKSUM_POS);
+        crc.update(buf);
+        if (payload != null) {
+            int position = payload.position();
+            crc.update(payload);
+            payload.position(position);
+        }
+        buf.limit(cdht.TRANSFER_HEADER_LEN);
+        buf.putInt(CHECKSUM_POS, (int) crc.getValue());
+        buf.position(0);
+        return buf;
+    }
+
+    /**
+     * Writes an ACK into a heap buffer, sealed with a checksum and left flipped ready to send.
+     *
+     * @param buf heap buffer of at least MAX_ACK_LEN bytes.
+     * @param session_id session of the segment being acknowledged.
+     * @param offset offset of the segment being acknowledged.
+     * @param length length of the segment being acknowledged.
+     * @param rwnd receive window in bytes advertised to the sender.
+     * @param cumulative offset below which every byte has been received.
+     * @param blocks SACK blocks as start, end pairs.
+     * @param block_count number of blocks to send, at most MAX_SACK_BLOCKS.
+     * @param crc checksum instance to reuse.
+     */
+    public static ByteBuffer writeAck(ByteBuffer buf, int session_id, long offset, int length, int rwnd,
+            long cumulative, long[] blocks, int block_count, CRC32C crc) {
+        buf.clear();
+        buf.put(MAGIC_POS, MAGIC);
+        buf.put(TYPE_POS, TYPE_ACK);
+        buf.putShort(FLAGS_POS, (short) 0);
+        buf.putInt(SESSION_POS, session_id);
+        buf.putInt(FILE_POS, 0);
+        buf.putLong(OFFSET_POS, offset);
+        buf.putInt(LENGTH_POS, length);
+        buf.putInt(RWND_POS, rwnd);
+        buf.putLong(CUMULATIVE_POS, cumulative);
+        buf.putShort(BLOCKS_POS, (short) block_count);
+        for (int i = 0; i < block_count; i++) {
+            buf.putLong(SACK_POS + i * BLOCK_LEN, blocks[2 * i]);
+            buf.putLong(SACK_POS + i * BLOCK_LEN + 8, blocks[2 * i + 1]);
+        }
+        int len = SACK_POS + block_count * BLOCK_LEN;
+
+        crc.reset();
+        crc.update(buf.array(), buf.arrayOffset(), CHECKSUM_POS);
+        crc.update(buf.array(), buf.arrayOffset() + cdht.TRANSFER_HEADER_LEN, len - cdht.TRANSFER_HEADER_LEN);
+        buf.putInt(CHECKSUM_POS, (int) crc.getValue());
+        buf.limit(len);
+        return buf;
+    }
+
+    /**
+     * Returns true if the packet starts with the transfer magic byte.
+     */
+    public static boolean isTransferPacket(byte[] packet, int len) {
+        return len >= cdht.TRANSFER_HEADER_LEN && packet[MAGIC_POS] == MAGIC;
+    }
+
+    /**
+     * Verifies the checksum of a received packet and that its length field matches the bytes received.
+     *
+     * @param buf heap buffer wrapping the received packet from index 0.
+     * @param len number of bytes received.
+     * @param crc checksum instance to reuse.
+     * @return true if the packet is intact.
+     */
+    public static boolean isValid(ByteBuffer buf, int len, CRC32C crc) {
+        if (len < cdht.TRANSFER_HEADER_LEN || buf.get(MAGIC_POS) != MAGIC) {
+            return false;
+        }
+        int payload_len = len - cdht.TRANSFER_HEADER_LEN;
+        if (type(buf) == TYPE_DATA ? length(buf) != payload_len
+                : len < ACK_LEN || sackBlocks(buf) > MAX_SACK_BLOCKS || len != ACK_LEN + sackBlocks(buf) * BLOCK_LEN) {
+            return false;
+        }
+        crc.reset();
+        crc.update(buf.array(), buf.arrayOffset(), CHECKSUM_POS);
+        crc.update(buf.array(), buf.arrayOffset() + cdht.TRANSFER_HEADER_LEN, payload_len);
+        return (int) crc.getValue() == buf.getInt(CHECKSUM_POS);
+    }
+
+    public static byte type(ByteBuffer buf) {
+        return buf.get(TYPE_POS);
+    }
+
+    public static boolean isEof(ByteBuffer buf) {
+        return (buf.getShort(FLAGS_POS) & FLAG_EOF) != 0;
+    }
+
+    public static int sessionId(ByteBuffer buf) {
+        return buf.getInt(SESSION_POS);
+    }
+
+    public static int fileName(ByteBuffer buf) {
+        return buf.getInt(FILE_POS);
+    }
+
+    public static int receiveWindow(ByteBuffer buf) {
+        return buf.getInt(RWND_POS);
+    }
+
+    public static long cumulativeAck(ByteBuffer buf) {
+        return buf.getLong(CUMULATIVE_POS);
+    }
+
+    public static int sackBlocks(ByteBuffer buf) {
+        return buf.getShort(BLOCKS_POS);
+    }
+
+    public static long sackStart(ByteBuffer buf, int block) {
+        return buf.getLong(SACK_POS + block * BLOCK_LEN);
+    }
+
+    public static long sackEnd(ByteBuffer buf, int block) {
+        return buf.getLong(SACK_POS + block * BLOCK_LEN + 8);
+    }
+
+    public static long offset(ByteBuffer buf) {
+        return buf.getLong(OFFSET_POS);
+    }
+
+    public static int length(ByteBuffer buf) {
+        return buf.getInt(LENGTH_POS);
+    }
+}
@@ -0,0 +1,232 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Binary event log for file transfers.
+ *
+ * Transfer threads record events as primitive fields into a lock-free ring buffer, which costs a compare and set
+ * and a few array stores instead of formatting a line of text. A background thread drains the ring to a binary
+ * file, and TransferLogRenderer turns that file back into the text log format on demand. If the ring fills up
+ * faster than it is drained, events are counted and dropped rather than slowing down the transfer.
+ *
+ * Every record is an event code followed by a time and four values, see cdht.write_log_text,
+ * cdht.write_rtt_log_text and cdht.write_cwnd_log_text for what the values mean for each kind of event.
+ */
+public class TransferLog implements Runnable {
+    private static final String threadName = "TransferLog";
+
+    // Event codes, their names in the text log and the level at which they are recorded.
+    public static final byte SND = 0;
+    public static final byte RCV = 1;
+    public static final byte DROP = 2;
+    public static final byte RTX = 3;
+    public static final byte RTX_DROP = 4;
+    public static final byte RTT = 5;
+    public static final byte RTO = 6;
+    public static final byte FAST = 7;
+    public static final byte TIMEOUT = 8;
+    public static final byte LOST = 9;
+    static final String[] EVENT_NAMES = { "snd", "rcv", "Drop", "RTX", "RTX/Drop", "rtt", "rto", "fast", "timeout",
+            "lost" };
+
+    // Logging levels, set with -Dcdht.log=off|packets|all. Packets logs every segment and ACK, all adds the RTT
+    // estimator and congestion window events.
+    public static final int LEVEL_OFF = 0;
+    public static final int LEVEL_PACKETS = 1;
+    public static final int LEVEL_ALL = 2;
+    private static final int[] EVENT_LEVELS = { 1, 1, 1, 1, 1, 2, 2, 2, 2, 1 };
+    public static final int LEVEL = parseLevel(System.getProperty("cdht.log", "all"));
+
+    // Binary file layout: MAGIC, then RECORD_LEN byte records of [event] [time] [a] [b] [c] [d].
+    static final int MAGIC = 0xCD106001;
+    static final int RECORD_LEN = 1 + 5 * Long.BYTES;
+    private static final int FIELDS = 5;
+    // Number of records the ring holds, a power of two.
+    private static final int CAPACITY = 1 << 15;
+    // How long the drain thread sleeps when the ring is empty, in nanoseconds.
+    private static final long DRAIN_INTERVAL = 10_000_000;
+
+    public static final TransferLog RESPONDING = new TransferLog("responding_log.bin");
+    public static final TransferLog REQUESTING = new TransferLog("requesting_log.bin");
+
+    private final String path;
+    private Thread t;
+    private volatile boolean started = false;
+    private volatile boolean shutdown = false;
+
+    // Ring buffer state. A producer claims a sequence number from tail, fills in the fields of its slot and then
+    // publishes the sequence number for the slot. The drain thread consumes slots in order and advances head.
+    private final byte[] events = new byte[CAPACITY];
+    private final long[] fields = new long[CAPACITY * FIELDS];
+    private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+    private final AtomicLong lost = new AtomicLong();
+
+    /**
+     * Instantiates a log that is written to the given file once the first event is recorded.
+     *
+     * @param path name of the binary log file.
+     */
+    private TransferLog(String path) {
+        this.path = path;
+        for (int i = 0; i < CAPACITY; i++) {
+            this.published.set(i, -1);
+        }
+    }
+
+    /**
+     * Returns true if events of this kind are recorded at the configured level.
+     */
+    public static boolean isEnabled(byte event) {
+        return EVENT_LEVELS[event] <= LEVEL;
+    }
+
+    /**
+     * Records a segment or ACK event.
+     */
+    public void packet(byte event, long time, long seq_num, int num_bytes, long ack_num) {
+        record(event, time, seq_num, num_bytes, ack_num, 0);
+    }
+
+    /**
+     * Records an RTT estimator update, a negative sample marks a timeout.
+     */
+    public void rtt(byte event, long time, double sample, double srtt, double rttvar, long rto) {
+        record(event, time, Double.doubleToRawLongBits(sample), Double.doubleToRawLongBits(srtt),
+                Double.doubleToRawLongBits(rttvar), rto);
+    }
+
+    /**
+     * Records a congestion window cut, all sizes in bytes.
+     */
+    public void window(byte event, long time, long cwnd, long ssthresh, long rwnd, long in_flight) {
+        record(event, time, cwnd, ssthresh, rwnd, in_flight);
+    }
+
+    private void record(byte event, long time, long a, long b, long c, long d) {
+        if (!isEnabled(event)) {
+            return;
+        }
+        if (!this.started) {
+            start();
+        }
+        long seq;
+        do {
+            seq = this.tail.get();
+            if (seq - this.head >= CAPACITY) {
+                this.lost.incrementAndGet();
+                return;
+            }
+        } while (!this.tail.compareAndSet(seq, seq + 1));
+
+        int slot = (int) (seq & (CAPACITY - 1));
+        int base = slot * FIELDS;
+        this.events[slot] = event;
+        this.fields[base] = time;
+        this.fields[base + 1] = a;
+        this.fields[base + 2] = b;
+        this.fields[base + 3] = c;
+        this.fields[base + 4] = d;
+        this.published.set(slot, seq);
+    }
+
+    /**
+     * Runs the drain loop, writing published records to the log file until shut down.
+     */
+    public void run() {
+        ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+        try (FileChannel file = FileChannel.open(Paths.get(this.path), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.putInt(MAGIC);
+            long reported_lost = 0;
+            while (true) {
+                boolean closing = this.shutdown;
+                long seq = this.head;
+                int slot = (int) (seq & (CAPACITY - 1));
+                if (this.published.get(slot) == seq) {
+                    if (out.remaining() < RECORD_LEN) {
+                        writeFully(file, out);
+                    }
+                    int base = slot * FIELDS;
+                    out.put(this.events[slot]);
+                    for (int i = 0; i < FIELDS; i++) {
+                        out.putLong(this.fields[base + i]);
+                    }
+                    this.head = seq + 1;
+                    continue;
+                }
+                // The ring is empty, note any events that were dropped and write out what we have.
+                long lost = this.lost.get();
+                if (lost > reported_lost) {
+                    if (out.remaining() < RECORD_LEN) {
+                        writeFully(file, out);
+                    }
+                    out.put(LOST).putLong(-1).putLong(lost - reported_lost).putLong(0).putLong(0).putLong(0);
+                    reported_lost = lost;
+                }
+                writeFully(file, out);
+                if (closing) {
+                    return;
+                }
+                LockSupport.parkNanos(DRAIN_INTERVAL);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts the drain thread, which also drains the ring one last time when the program exits.
+     */
+    private synchronized void start() {
+        if (this.t == null) {
+            this.t = new Thread(this, threadName);
+            this.t.setDaemon(true);
+            this.t.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+            this.started = true;
+        }
+    }
+
+    /**
+     * Stops the drain thread once everything recorded so far has been written.
+     */
+    public void shutdown() {
+        this.shutdown = true;
+        Thread t = this.t;
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel file, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            file.write(out);
+        }
+        out.clear();
+    }
+
+    private static int parseLevel(String level) {
+        switch (level.toLowerCase()) {
+            case "off":
+                return LEVEL_OFF;
+            case "packets":
+                return LEVEL_PACKETS;
+            default:
+                return LEVEL_ALL;
+        }
+    }
+}
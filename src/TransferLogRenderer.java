@@ -0,0 +1,82 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Renders a binary transfer log written by TransferLog in the text log format.
+ *
+ * Usage: java TransferLogRenderer [log.bin] [log.txt]
+ *
+ * Reads responding_log.bin by default and prints to standard output unless an output file is given. The log
+ * can be rendered while the peer is still running, in which case it shows everything drained so far.
+ */
+public class TransferLogRenderer {
+
+    public static void main(String[] args) throws IOException {
+        String in_path = args.length > 0 ? args[0] : "responding_log.bin";
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(in_path)));
+                PrintWriter out = args.length > 1 ? new PrintWriter(new FileWriter(args[1]))
+                        : new PrintWriter(new OutputStreamWriter(System.out))) {
+            if (in.readInt() != TransferLog.MAGIC) {
+                System.err.println(in_path + " is not a transfer log.");
+                System.exit(1);
+            }
+            render(in, out);
+        } catch (FileNotFoundException e) {
+            System.err.println("Log file " + in_path + " not found.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes one line of text for every record in the log.
+     *
+     * @param in the log, positioned after its header.
+     * @param out where the text is written.
+     */
+    public static void render(DataInputStream in, PrintWriter out) throws IOException {
+        byte[] record = new byte[TransferLog.RECORD_LEN];
+        ByteBuffer fields = ByteBuffer.wrap(record);
+        while (readRecord(in, record)) {
+            fields.position(1);
+            out.println(format(record[0], fields.getLong(), fields.getLong(), fields.getLong(), fields.getLong(),
+                    fields.getLong()));
+        }
+    }
+
+    /**
+     * Formats a record the way the transfer log has always been written.
+     */
+    private static String format(byte event, long time, long a, long b, long c, long d) {
+        String name = event >= 0 && event < TransferLog.EVENT_NAMES.length ? TransferLog.EVENT_NAMES[event] : "?";
+        switch (event) {
+            case TransferLog.RTT:
+            case TransferLog.RTO:
+                return cdht.write_rtt_log_text(name, time, Double.longBitsToDouble(a), Double.longBitsToDouble(b),
+                        Double.longBitsToDouble(c), d);
+            case TransferLog.FAST:
+            case TransferLog.TIMEOUT:
+                return cdht.write_cwnd_log_text(name, time, a, b, c, d);
+            case TransferLog.LOST:
+                return a + " events were not logged, the log could not keep up.";
+            default:
+                return cdht.write_log_text(name, time, a, (int) b, c);
+        }
+    }
+
+    /**
+     * Reads a whole record, ignoring a partial record at the end of a log that is still being written.
+     *
+     * @return false at the end of the log.
+     */
+    private static boolean readRecord(DataInputStream in, byte[] record) throws IOException {
+        int read = 0;
+        while (read < record.length) {
+            int n = in.read(record, read, record.length - read);
+            if (n < 0) {
+                return false;
+            }
+            read += n;
+        }
+        return true;
+    }
+}
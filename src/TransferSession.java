@@ -0,0 +1,275 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Receive side state of a single file transfer, identified by the session id carried in every segment.
+ *
+ * Segments are written straight to their offset in the session's own output file, so out-of-order data never
+ * has to be held in memory. The reorder buffer only remembers which ranges beyond the first gap have already
+ * arrived so the in-order point can be advanced once the gap is filled. A session may be fed by several
+ * senders at once, each covering a different range of the file.
+ *
+ * While a transfer is incomplete, the received ranges are saved next to the output file in a .part file at
+ * most every PERSIST_INTERVAL milliseconds and when the session closes. A later session for the same file picks
+ * the partial file and its ranges back up, and the requester sends the ranges with its request so only the
+ * missing data is sent again. Only one session per file is open at a time, PingServerUDP refuses any other
+ * since they would share the output and .part files.
+ */
+public class TransferSession {
+    private static final String PART_SUFFIX = ".part";
+    private static final int PART_MAGIC = 0xCD7A0001;
+    private static final long PERSIST_INTERVAL = 1000;
+
+    private final int session_id;
+    private final int file_name;
+    private final FileChannel out;
+    private final RangeSet reorder_buffer = new RangeSet();
+    private long expected_offset = 0;
+    private long highest_offset = 0;
+    private long final_offset;
+    private long last_persist = System.currentTimeMillis();
+
+    // Statistics for the transfer.
+    private final long start_time = System.nanoTime();
+    private long last_activity = System.currentTimeMillis();
+    private long segments = 0;
+    private long bytes = 0;
+    private long duplicates = 0;
+    private long out_of_order = 0;
+
+    /**
+     * Opens a session writing to received_file_[file_name].pdf, resuming a partial download of the file if one
+     * was saved.
+     *
+     * @param session_id id of the transfer.
+     * @param file_name name of the file being received.
+     * @param file_len length of the file if known in advance, otherwise -1 and the EOF flag marks the end.
+     */
+    public TransferSession(int session_id, int file_name, long file_len) throws IOException {
+        this.session_id = session_id;
+        this.file_name = file_name;
+        this.final_offset = file_len;
+
+        long[] saved_len = new long[] { -1 };
+        RangeSet saved = readProgress(file_name, saved_len);
+        if (saved != null && saved.size() > 0) {
+            for (long[] range : saved.ranges()) {
+                this.reorder_buffer.add(range[0], range[1]);
+            }
+            System.out.println("Resuming file " + file_name + " with " + this.reorder_buffer.contiguousEnd(0)
+                    + " bytes already received in order.");
+            this.out = FileChannel.open(Paths.get(outputName(file_name)), StandardOpenOption.WRITE);
+            this.expected_offset = this.reorder_buffer.contiguousEnd(0);
+            this.highest_offset = this.reorder_buffer.highestEnd();
+            if (this.final_offset == -1) {
+                this.final_offset = saved_len[0];
+            }
+        } else {
+            this.out = FileChannel.open(Paths.get(outputName(file_name)), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+    }
+
+    /**
+     * Returns the ranges of a file saved by an earlier, incomplete session, or null if there are none.
+     *
+     * @param file_name
+     */
+    public static RangeSet savedProgress(int file_name) {
+        return readProgress(file_name, new long[1]);
+    }
+
+    /**
+     * Reads the .part file of a file. A missing or damaged progress file just means starting over.
+     *
+     * @param file_name
+     * @param file_len receives the saved file length in its first element, -1 if it was not known yet.
+     * @return the saved ranges, or null if there is no usable progress file.
+     */
+    private static RangeSet readProgress(int file_name, long[] file_len) {
+        Path part = partPath(file_name);
+        if (!Files.exists(part) || !Files.exists(Paths.get(outputName(file_name)))) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(part)))) {
+            if (in.readInt() != PART_MAGIC) {
+                return null;
+            }
+            file_len[0] = in.readLong();
+            return RangeSet.readFrom(in);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Path partPath(int file_name) {
+        return Paths.get(outputName(file_name) + PART_SUFFIX);
+    }
+
+    /**
+     * Saves the received ranges to the .part file. The data is forced to disk first so the ranges never claim
+     * more than the file holds, and the file is replaced atomically so a crash leaves either version intact.
+     */
+    private void persist() throws IOException {
+        this.out.force(false);
+        Path part = partPath(this.file_name);
+        Path tmp = Paths.get(part + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            dos.writeInt(PART_MAGIC);
+            dos.writeLong(this.final_offset);
+            this.reorder_buffer.writeTo(dos);
+        }
+        Files.move(tmp, part, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.last_persist = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the name of the file a transfer of file_name is written to.
+     */
+    public static String outputName(int file_name) {
+        return "received_file_" + file_name + ".pdf";
+    }
+
+    /**
+     * Writes a segment at its offset in the output file unless it has been received before.
+     *
+     * @param payload buffer positioned and limited to the segment data, its position is advanced.
+     * @param offset offset of the segment in the file.
+     * @param eof true if this is the last segment of the file.
+     * @return true if the segment was new.
+     */
+    public synchronized boolean receive(ByteBuffer payload, long offset, boolean eof) throws IOException {
+        int len = payload.remaining();
+        this.last_activity = System.currentTimeMillis();
+        this.segments++;
+        if (eof) {
+            this.final_offset = offset + len;
+        }
+        if (this.reorder_buffer.contains(offset, offset + len)) {
+            this.duplicates++;
+            return false;
+        }
+
+        while (payload.hasRemaining()) {
+            this.out.write(payload, offset + len - payload.remaining());
+        }
+        this.bytes += len;
+        if (offset != this.expected_offset) {
+            this.out_of_order++;
+        }
+        // Advance past any ranges that arrived ahead of a gap this segment filled.
+        this.reorder_buffer.add(offset, offset + len);
+        this.expected_offset = this.reorder_buffer.contiguousEnd(0);
+        this.highest_offset = Math.max(this.highest_offset, offset + len);
+        if (!isComplete() && this.last_activity - this.last_persist >= PERSIST_INTERVAL) {
+            persist();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the offset below which every byte has been received.
+     */
+    public synchronized long cumulativeAck() {
+        return this.expected_offset;
+    }
+
+    /**
+     * Writes the SACK blocks for an ACK of the segment at offset, see RangeSet.blocksBefore.
+     *
+     * @param blocks array of at least 2 * max elements.
+     * @return the number of blocks written.
+     */
+    public synchronized int sackBlocks(long offset, long[] blocks, int max) {
+        return this.reorder_buffer.blocksBefore(offset, this.expected_offset, blocks, max);
+    }
+
+    /**
+     * Returns the ranges of [start, end) that have not been received yet.
+     */
+    public synchronized List<long[]> missing(long start, long end) {
+        return this.reorder_buffer.missing(start, end);
+    }
+
+    /**
+     * Returns how many more bytes the session can take beyond what it has buffered. Data past the first gap
+     * counts against the window until the gap is filled, so a sender that keeps losing the same segment is
+     * slowed down instead of spreading ever further ahead.
+     */
+    public synchronized int receiveWindow() {
+        long buffered = Math.max(0, this.highest_offset - this.expected_offset);
+        return (int) Math.max(0, cdht.RECEIVE_WINDOW - buffered);
+    }
+
+    /**
+     * Returns true if every byte of [start, end) has been written.
+     */
+    public synchronized boolean contains(long start, long end) {
+        return this.reorder_buffer.contains(start, end);
+    }
+
+    /**
+     * Returns true once every byte up to the end of the file has been written.
+     */
+    public synchronized boolean isComplete() {
+        return this.final_offset != -1 && this.expected_offset >= this.final_offset;
+    }
+
+    /**
+     * Closes the output file. An incomplete session saves its progress so it can be resumed, a complete one
+     * removes the progress file.
+     */
+    public synchronized void close() {
+        try {
+            if (isComplete()) {
+                Files.deleteIfExists(partPath(this.file_name));
+            } else if (this.out.isOpen()) {
+                persist();
+            }
+            this.out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns a one line summary of the transfer statistics.
+     */
+    public synchronized String summary() {
+        double secs = Math.max(1e-9, (System.nanoTime() - this.start_time) / 1e9);
+        return String.format("Session %08x (file %d): %d bytes in %.2fs (%.1f KB/s), %d segments, %d out of order, "
+                + "%d duplicates", this.session_id, this.file_name, this.bytes, secs, throughput(),
+                this.segments, this.out_of_order, this.duplicates);
+    }
+
+    /**
+     * Returns the average rate data has been received at since the session started, in KB/s.
+     */
+    public synchronized double throughput() {
+        double secs = Math.max(1e-9, (System.nanoTime() - this.start_time) / 1e9);
+        return this.bytes / secs / 1024;
+    }
+
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    public int getSessionId() {
+        return this.session_id;
+    }
+
+    public int getFileName() {
+        return this.file_name;
+    }
+
+    public synchronized long getLastActivity() {
+        return this.last_activity;
+    }
+}
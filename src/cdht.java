@@ -1,460 +1,1431 @@
-import java.net.*;
-import java.io.*;
-import java.util.regex.*;
-import java.time.Instant;
-
-public class cdht {
-    public static final int TRANSFER_HEADER_LEN = 20;
-    public static final int DEFAULT_PORT = 50000;
-    public static final int PING_FREQ = 20000;
-    public static final int SOCKET_TIMEOUT_FREQ = 5000;
-    public static final int MAX_FAILS = 2;
-
-    private int peer_id;
-    private int first_succ;
-    private int second_succ;
-    private int first_pred = -1;
-    private int second_pred = -1;
-    public Instant time;
-
-    private int MSS;
-    private float drop_prob;
-    private PingServerUDP pingServer;
-    private PingSenderUDP pingSenderFirst;
-    private PingSenderUDP pingSenderSecond;
-    private TCPServer tcpServer;
-    private volatile boolean shutdown = false;
-
-    public cdht(int peer_id, int first_succ_id, int second_succ_id, int MSS, float drop_prob) {
-        this.peer_id = peer_id;
-        this.first_succ = first_succ_id;
-        this.second_succ = second_succ_id;
-        this.MSS = MSS;
-        this.drop_prob = drop_prob;
-        this.time = Instant.now();
-    }
-
-    /**
-     * Reads in arguments and initialises threads.
-     * 
-     * @param args
-     */
-    public static void main(String[] args) {
-        cdht peer = null;
-        if (args.length != 5) {
-            System.err.println("Must specify arguments [peer_id] [first_successor_id] [second_successor_id] [MSS]"
-                    + " [dropout_probability]");
-            System.exit(1);
-        }
-
-        try {
-            int peer_id = Integer.parseInt(args[0]);
-            int first_succ_id = Integer.parseInt(args[1]);
-            int second_succ_id = Integer.parseInt(args[2]);
-            int MSS = Integer.parseInt(args[3]);
-            float drop_prob = Float.parseFloat(args[4]);
-            peer = new cdht(peer_id, first_succ_id, second_succ_id, MSS, drop_prob);
-        } catch (NumberFormatException ex) {
-            System.err.println("Error parsing arguments.");
-            System.exit(1);
-        }
-        // Start the peer and all services.
-        peer.initializeThreads();
-
-        // Start loop for reading in terminal input.
-        BufferedReader br = null;
-        while (!peer.shutdown) {
-            try {
-                br = new BufferedReader(new InputStreamReader(System.in));
-                String input_string = br.readLine();
-                peer.parseUserInput(input_string);
-            } catch (IOException e) {
-                System.err.println(e);
-            }
-        }
-    }
-
-    /**
-     * Initialises all threads that the peer has to run. A PingServer to respond to
-     * pings. A PingSender to send pings. A TCP server to receive graceful quit
-     * messages and file transfer requests. A TCP sender to send graceful quit
-     * messages and file transfer requests.
-     */
-    private void initializeThreads() {
-        // Initiate Ping Server
-        this.pingServer = new PingServerUDP(this);
-        this.pingServer.start();
-
-        // 0 indicates the first successor ping sending thread.
-        this.pingSenderFirst = new PingSenderUDP(this, true);
-        this.pingSenderFirst.start();
-
-        // 1 indicates the second successor ping sending thread.
-        this.pingSenderSecond = new PingSenderUDP(this, false);
-        this.pingSenderSecond.start();
-
-        // Initiate TCP Server
-        this.tcpServer = new TCPServer(this);
-        this.tcpServer.start();
-    }
-
-    /**
-     * Updates the predecessors of the peer based on id. If first is true, then
-     * update first predecessor. Else update the second predecessor.
-     * 
-     * @param id   represents the id of the new predecessor.
-     * @param flag determines which predecessor to update.
-     */
-    public void updatePredecessors(int id, int first) {
-        if (first == 1) {
-            setFirstPredecessor(id);
-        } else {
-            setSecondPredecessor(id);
-        }
-    }
-
-    // =================OTHER UTILITY
-    // FUNCTIONS======================================//
-
-    /**
-     * Parses the user input and directs decision to either the graceful quit
-     * function or the file request function.
-     * 
-     * @param usr_input
-     */
-    private void parseUserInput(String usr_input) {
-
-        // Draw up some simple regex for parsing input.
-        String file_request_pattern_str = "request \\d{4}";
-        String quit_pattern_str = "quit";
-        String print_debug = "debug";
-
-        Pattern file_request_pattern = Pattern.compile(file_request_pattern_str);
-        Pattern quit_pattern = Pattern.compile(quit_pattern_str);
-        Pattern debug_pattern = Pattern.compile(print_debug);
-
-        Matcher file_matcher = file_request_pattern.matcher(usr_input);
-        Matcher quit_matcher = quit_pattern.matcher(usr_input);
-        Matcher debug_matcher = debug_pattern.matcher(usr_input);
-
-        // FILE REQUEST INPUT MATCH
-        if (file_matcher.find()) {
-            // Grab the second element from the string split (the 4 numbers)
-            int file_name = Integer.parseInt(usr_input.split(" ")[1]);
-
-            // Edge case for when peer requests a file of the same hash as its peer id,
-            // don't initiate any sending.
-            if (file_name % 256 == this.getPeer()) {
-                System.out.println("File is already stored at this peer!");
-                return;
-            }
-
-            // Initiate file request procedure.
-            System.out.println("File request message for " + file_name + " has been sent to my successor.");
-            fileRequest(file_name, this.getPeer());
-
-            // QUIT REQUEST INPUT MATCH
-        } else if (quit_matcher.find()) {
-
-            // Kill the ping sender and ping server.
-            this.pingSenderFirst.shutdown();
-            this.pingSenderSecond.shutdown();
-            this.pingServer.shutdown();
-
-            // Send messages TCP messages that we are leaving the network.
-            this.gracefulQuit(this.getFirstPredecessor());
-            this.gracefulQuit(this.getSecondPredecessor());
-
-            this.shutdown = true;
-
-            // MATCH FOR DEBUGGING
-        } else if (debug_matcher.find()) {
-            // Used to debug state information.
-            System.out.println(String.format("[P2: %s P1: %s S1: %s S2: %s]", this.second_pred, this.first_pred,
-                    this.first_succ, this.second_succ));
-        }
-    }
-
-    /**
-     * Initiates a file request procedure for a file with given filename.
-     * 
-     * @param hash hashed value of the filename.
-     */
-    public void fileRequest(int file_name, int sending_peer) {
-        try {
-            // Set up the TCP Socket
-            Socket sendSocket = new Socket("localhost", cdht.getPort(this.getFirstSuccessor()));
-            DataOutputStream messageStream = new DataOutputStream(sendSocket.getOutputStream());
-
-            // Send the request message to the first successor. Third parameter = 1 => it is
-            // a query.
-            String file_request_msg = createFileRequest(file_name, sending_peer, 1);
-            messageStream.writeBytes(file_request_msg);
-            sendSocket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return;
-        }
-    }
-
-    public void initiateFileTransfer(int sending_peer, int file_name) {
-        FileSenderUDP fs = new FileSenderUDP(file_name, sending_peer, this.MSS, this.drop_prob, this.time);
-        fs.start();
-    }
-
-    public static String write_log_text(String event, long time, int seq_num, int num_bytes, int ack_num) {
-        return String.format("%-10s %-10s %-10s %-10s %-10s", event, time, seq_num, num_bytes, ack_num);
-    }
-
-    /**
-     * Initiates a graceful quit procedure for this peer to the peer with ID
-     * receiver.
-     * 
-     * @param receiver
-     */
-    private void gracefulQuit(int receiver) {
-        try {
-            // Set up the TCP Socket
-            Socket sendSocket = new Socket("localhost", cdht.getPort(receiver));
-            DataOutputStream messageStream = new DataOutputStream(sendSocket.getOutputStream());
-
-            String quitMessage = null;
-            if (receiver == this.first_pred) {
-                // The first predecessor's successors become the quitting peer's two successors.
-                quitMessage = createGracefulQuitMessage(this.first_succ, this.second_succ);
-            } else if (receiver == this.second_pred) {
-                // The second predecessor's successors become the quitting peer's first
-                // predecessor and first successor.
-                quitMessage = createGracefulQuitMessage(this.first_pred, this.first_succ);
-            } else {
-                System.out.println("Impossible Error just occurred.");
-                System.exit(1);
-            }
-            messageStream.writeBytes(quitMessage + "\n");
-            sendSocket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    /**
-     * Handles when a peer has failed to return MAX_FAILS pings and is assumed dead.
-     * We have to update successors accordingly.
-     * 
-     * @param first flag for whether the failed peer is a first successor or not.
-     */
-    public void handleDeadPeer(boolean first) {
-        if (first) {
-            // Print messages to stdout.
-            System.out.println(String.format("Peer %d is no longer alive", this.getFirstSuccessor()));
-            System.out.println(String.format("My first successor is now peer %d.", this.getSecondSuccessor()));
-
-            // Set the first successor as the second successor if the first successor died.
-            this.setFirstSuccessor(this.getSecondSuccessor());
-
-        } else {
-            // Wait a brief amount of time for the first successor to update their successors.
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-
-            // Print messages to stdout.
-            System.out.println(String.format("Peer %d is no longer alive.", this.getSecondSuccessor()));
-            System.out.println(String.format("My first successor is now peer %d.", this.getFirstSuccessor()));
-        }
-
-        try {
-            // Create a TCP Socket to send message to new first successor.
-            Socket sendSocket = new Socket("localhost", cdht.getPort(this.getFirstSuccessor()));
-            DataOutputStream messageStream = new DataOutputStream(sendSocket.getOutputStream());
-            // Create the TCP Message and send it.
-            String msg = createSuccessorQuery();
-            messageStream.writeBytes(msg);
-            sendSocket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return;
-        }
-    }
-
-    //================TCP PROTOCOL MESSAGE FORMAT=============================//
-    /*
-     * [QUERY TYPE] [SENDING PEER ID] [PAYLOAD FIELD 1] [PAYLOAD FIELD 2] [PAYLOAD FIELD 3]
-     * QUERY TYPE: {GQ: 'Graceful Quit', "FR": 'File Request'}
-     * SENDING PEER ID: {The id of the sender}
-     * PAYLOAD: {GQ: '[receivers nbew SUCC1] [receivers new SUCC2] [QUIT FLAG = 1 => if this peer wants to quit]', 
-     *           FR: '[FILE NAME] [FLAG => true if successor has the file.] [QUERY FLAG = 1 if query]',
-     *           DP: '[QUERY FLAG] [IF FLAG = 0: ID OF SUCCESSOR, ELSE 0] [0]'
-     *          } 
-     */
-
-    //================TCP MESSAGE FUNCTIONS==================================//
-    
-    /**
-     * Creates a file request message for the desired filename.
-     * 
-     * @param file_name integer name of the file.
-     * @param sending_peer id of the peer who sent the query.
-     * @param query flag for telling whether the message is a query or response.
-     * @return
-     */
-    private String createFileRequest(int file_name, int sending_peer, int query) {
-        // Computes the hash of the filename.
-        int hash = file_name % 256;
-        // Checks if the successor has the file.
-        boolean has_file = successorHasFile(hash);
-        int val = has_file ? 1 : 0;
-        // Constructs the TCP message in format above.
-        return "FR " + sending_peer + " " + file_name + " " + val + " " + query;
-    }
-
-    /**
-     * Creates a TCP protocol message for graceful quitting. 
-     * [GQ] [sending_peer] [first_id] [second_id] [query_flag = 1 => I want to leave]
-     * @param first_id new first successor
-     * @param second_id new second successor.
-     * @return
-     */
-    private String createGracefulQuitMessage(int first_id, int second_id) {
-        String payload = Integer.toString(first_id) + " " + Integer.toString(second_id) + " " + 1;
-        return TCPmessageBeginning("GQ") + " " + payload;
-    }
-
-    /**
-     * Creates a dead peer TCP message as either a query or a response.
-     * @param flag if flag = true it is a first successor.
-     * @return
-     */
-    private String createSuccessorQuery() {
-        // The third field of the TCP message is a "1" because it is a query.
-        // The 4th field of the TCP message is a "0" because queries don't know successors.
-        return TCPmessageBeginning("DP")+ " " + 1 + " " + 0 + " " + 0;
-    }
-    
-    /**
-     * Helper method for producing the beginning of a TCP message header.
-     * @param type
-     * @return First two fields of a TCP message.
-     */
-    private String TCPmessageBeginning(String type) {
-        return type + " " + Integer.toString(this.peer_id);
-    }
-
-    // =====================STATIC HELPER FUNCTIONS===========================//
-
-    /**
-     * Returns UDP Port for given peer_id
-     * @param peer_id
-     * @return port number for that peer_id
-     */
-    public static int getPort(int peer_id) {
-        return DEFAULT_PORT + peer_id;
-    }
-
-    /**
-     * Returns true if this peer's successor has the file. 
-     * @param hash
-     * @return boolean.
-     */
-    public boolean successorHasFile(int hash) {
-        /**
-         * Three cases.
-         * 
-         * Case 0: E.g peer = 1 hash = 3 successor = 3. => peer 3 owns it.
-         * Case 1: E.g peer = 1 hash = 2 successor = 3. => peer 3 owns it.
-         * Case 2: E.g peer = 15 hash = 220 successor = 1. => peer 1 owns it.
-         * Case 3: E.g peer = 15 hash = 0 successor = 1. => peer 1 owns it.
-         */
-        return (this.getPeer() < this.getFirstSuccessor() && hash == this.getFirstSuccessor() || 
-                this.getPeer() < this.getFirstSuccessor() && hash < this.getFirstSuccessor() && hash > this.getPeer() ||
-                this.getPeer() > this.getFirstSuccessor() && hash > this.getPeer() && hash > this.getFirstSuccessor() ||
-                this.getPeer() > this.getFirstSuccessor() && hash < this.getPeer() && hash < this.getFirstSuccessor());
-    }
-
-    //========================GETTER METHODS===============================//
-    
-    /**
-     * Gets the first successor of the peer to the given id.
-     * @return
-     */
-    public int getFirstSuccessor() {
-        return this.first_succ;
-    }
-
-    /**
-     * Gets the second successor of the peer to the given id.
-     * @return
-     */
-    public int getSecondSuccessor() {
-        return this.second_succ;
-    }
-
-    /**
-     * Gets the first successor of the peer to the given id.
-     * @return
-     */
-    public int getFirstPredecessor() {
-        return this.first_pred;
-    }
-
-    /**
-     * Gets the second successor of the peer to the given id.
-     * @return
-     */
-    public int getSecondPredecessor() {
-        return this.second_pred;
-    }
-    
-    /**
-     * Gets the peer id of the peer.
-     * @return
-     */
-    public int getPeer() {
-        return this.peer_id;
-    }
-
-    /**
-     * Gets the MSS of the peer.
-     * @return
-     */
-    public int getMSS() {
-        return this.MSS;
-    }
-
-    //=======================SETTER METHODS============================//
-
-    /**
-     * Sets the first predecessor of the peer to the given id.
-     * @param id
-     */
-    public void setFirstPredecessor(int id) {
-        this.first_pred = id;
-    }
-
-    /**
-     * Sets the second predecessor of the peer to the given id.
-     * @param id
-     */
-    public void setSecondPredecessor(int id) {
-        this.second_pred = id;
-    }
-
-    /**
-     * Sets the first successor of the peer to the given id.
-     * @param id
-     */
-    public void setFirstSuccessor(int id) {
-        this.first_succ = id;
-    }
-
-    /**
-     * Sets the second successor of the peer to the given id.
-     * @param id
-     */
-    public void setSecondSuccessor(int id) {
-        this.second_succ = id;
-    }
-
-}
+import java.net.*;
+import java.io.*;
+import java.util.regex.*;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+public class cdht {
+    public static final int TRANSFER_HEADER_LEN = 28;
+    public static final int DEFAULT_PORT = 50000;
+    // Milliseconds between ping rounds (-Dcdht.ping_interval=N) and how long a ping waits for its response
+    // (-Dcdht.ping_timeout=N). When a successor is declared dead is up to PhiAccrualDetector.
+    public static final int PING_FREQ = Math.max(1, Integer.getInteger("cdht.ping_interval", 20000));
+    public static final int SOCKET_TIMEOUT_FREQ = Math.max(1, Integer.getInteger("cdht.ping_timeout", 5000));
+    // Upper bound on the file segments that may be in flight at once, the congestion and receive windows
+    // usually keep it lower (override with -Dcdht.window=N).
+    public static final int WINDOW_SIZE = Integer.getInteger("cdht.window", 64);
+    // Bytes a receive session buffers beyond its first gap before it closes its window (-Dcdht.rwnd=N), and the
+    // receive buffer requested for the UDP socket, which is shared by every session.
+    public static final int RECEIVE_WINDOW = Integer.getInteger("cdht.rwnd", 4 * 1024 * 1024);
+    public static final int SOCKET_RECEIVE_BUFFER = 4 * 1024 * 1024;
+    // Bounds for the adaptive retransmission timeout of file segments in milliseconds.
+    public static final int MIN_RTO = Integer.getInteger("cdht.min_rto", 10);
+    public static final int MAX_RTO = Integer.getInteger("cdht.max_rto", 60000);
+    // Maximum number of peers a file is downloaded from in parallel, 1 disables swarm downloads
+    // (-Dcdht.sources=N), and the size in bytes of the chunks handed to each of them (-Dcdht.chunk=N).
+    public static final int SWARM_SOURCES = Integer.getInteger("cdht.sources", 1);
+    public static final int CHUNK_SIZE = Integer.getInteger("cdht.chunk", 64 * 1024);
+    // Most files looked up by a single batch request, larger requests are split into several batches.
+    public static final int MAX_BATCH = 1000;
+    // Most files a single request command may name, ranges included.
+    public static final int MAX_REQUEST_FILES = 100 * MAX_BATCH;
+    // Most received ranges a file request carries when resuming an interrupted download.
+    public static final int MAX_RESUME_RANGES = 256;
+    // Threads handling control messages received over TCP (-Dcdht.handlers=N).
+    public static final int TCP_HANDLERS = Integer.getInteger("cdht.handlers", 4);
+    // How long a quitting peer waits for its transfers to stop, in milliseconds.
+    public static final int TRANSFER_STOP_TIMEOUT = 2000;
+    // Finger index a joining peer looks its own successor up with, the answer is not a finger.
+    public static final int JOIN_FINGER = -1;
+    // How long a joining peer waits for the answer to its lookup before asking again, in milliseconds.
+    public static final int JOIN_RETRY = 5000;
+    // A first predecessor that has not pinged for this many milliseconds is replaced by whichever peer pings next,
+    // one the ring reports suspected or dead is replaced straight away.
+    public static final int PREDECESSOR_TIMEOUT = 2 * (PING_FREQ + SOCKET_TIMEOUT_FREQ);
+
+    private int peer_id;
+    // Ids of every virtual node running on this machine, this peer included.
+    private Set<Integer> local_peers;
+    // The next SuccessorList.LENGTH peers on the ring and the two predecessors, replaced whole by updateRouting.
+    private final AtomicReference<RoutingState> routing;
+    // When the first predecessor last pinged, in milliseconds. Kept out of the routing snapshot so that a ping
+    // only replaces the snapshot when it changes a pointer.
+    private volatile long first_pred_heard = 0;
+    public Instant time;
+
+    private int MSS;
+    private float drop_prob;
+    private PingServerUDP pingServer;
+    private PingSenderUDP pingSender;
+    private TCPServer tcpServer;
+    private FingerTable fingers;
+    // Long lived connections to other peers that every control message is sent over.
+    private final ConnectionPool connections = new ConnectionPool();
+    // File senders and swarm downloads started by this peer, stopped when it quits.
+    private final TaskScope transfers = new TaskScope("transfers");
+    private volatile boolean shutdown = false;
+    // True until a peer started with join has found its successor.
+    private volatile boolean joining = false;
+
+    // Hop counts of the file lookups this peer has made, shown by the debug command.
+    private int lookups = 0;
+    private long lookup_hops = 0;
+    private int last_lookup_hops = 0;
+    // When each lookup still waiting for its answer was started, in nanoseconds, keyed by the request or batch
+    // it belongs to and the file (see lookupKey), so repeated and overlapping requests are timed separately.
+    private final Map<Long, Long> lookup_started = new ConcurrentHashMap<Long, Long>();
+    // Owners of the hashes this peer has looked up, so repeated requests skip the ring walk.
+    private final LookupCache lookup_cache = new LookupCache();
+
+    // Batch lookups waiting for answers, keyed by batch id.
+    private Map<Integer, BatchLookup> batches = new ConcurrentHashMap<Integer, BatchLookup>();
+    // Swarm downloads in progress, keyed by session id.
+    private Map<Integer, SwarmDownload> swarms = new ConcurrentHashMap<Integer, SwarmDownload>();
+    // Peers that have downloaded a copy of a file stored here, offered as extra swarm sources.
+    private Map<Integer, Set<Integer>> cached_by = new ConcurrentHashMap<Integer, Set<Integer>>();
+    // What this peer has heard about the others, spread on pings.
+    private final Membership membership;
+
+    public cdht(int peer_id, int first_succ_id, int second_succ_id, int MSS, float drop_prob) {
+        this(peer_id, first_succ_id, second_succ_id, MSS, drop_prob, false);
+    }
+
+    /**
+     * Instantiates a peer, which either knows its successors or joins a running ring through a bootstrap peer.
+     * 
+     * @param first_succ_id the first successor, or the bootstrap peer when joining.
+     * @param second_succ_id the second successor, ignored when joining.
+     * @param joining true if the peer looks its successor up through first_succ_id once it has started.
+     */
+    public cdht(int peer_id, int first_succ_id, int second_succ_id, int MSS, float drop_prob, boolean joining) {
+        this.peer_id = peer_id;
+        this.local_peers = Set.of(peer_id);
+        this.joining = joining;
+        this.routing = new AtomicReference<RoutingState>(new RoutingState(joining
+                ? new SuccessorList(peer_id, first_succ_id) : new SuccessorList(peer_id, first_succ_id, second_succ_id)));
+        // A joining peer may have been in the ring before, its new incarnation must beat what is remembered of it.
+        this.membership = new Membership(peer_id, joining ? (int) (System.currentTimeMillis() / 1000) : 0);
+        this.MSS = MSS;
+        this.drop_prob = drop_prob;
+        this.time = Instant.now();
+    }
+
+    /**
+     * Reads in arguments and initialises threads.
+     * 
+     * A machine can take a larger share of the keys by running several virtual nodes, each a peer at its own
+     * position on the ring. They are given as comma separated lists of ids and successors, e.g. 5,130 12,140
+     * 20,160 runs peers 5 and 130.
+     * 
+     * A peer can also join a running ring without knowing its successors, given any peer already in the ring to
+     * bootstrap from: [peer_id] join [bootstrap_id] [MSS] [dropout_probability]. Virtual nodes join the same way,
+     * e.g. 7,140 join 12 looks both up through peer 12.
+     * 
+     * @param args
+     */
+    public static void main(String[] args) {
+        List<cdht> nodes = new ArrayList<cdht>();
+        if (args.length != 5) {
+            System.err.println("Must specify arguments [peer_id] [first_successor_id] [second_successor_id] [MSS]"
+                    + " [dropout_probability], or [peer_id] join [bootstrap_id] [MSS] [dropout_probability]");
+            System.exit(1);
+        }
+
+        if (Integer.getInteger("cdht.bits", IdSpace.BITS) != IdSpace.BITS) {
+            System.err.println("cdht.bits must lie in [1, " + IdSpace.MAX_BITS + "], peer ids are limited to "
+                    + (65536 - DEFAULT_PORT) + " ports.");
+            System.exit(1);
+        }
+
+        try {
+            boolean join = args[1].equals("join");
+            String[] peer_ids = args[0].split(",");
+            String[] first_succ_ids = (join ? args[2] : args[1]).split(",");
+            String[] second_succ_ids = join ? first_succ_ids : args[2].split(",");
+            int MSS = Integer.parseInt(args[3]);
+            float drop_prob = Float.parseFloat(args[4]);
+            if (join && first_succ_ids.length == 1) {
+                // One bootstrap peer for every virtual node.
+                first_succ_ids = second_succ_ids = Collections.nCopies(peer_ids.length, args[2])
+                        .toArray(new String[0]);
+            }
+            if (first_succ_ids.length != peer_ids.length || second_succ_ids.length != peer_ids.length) {
+                System.err.println("Every virtual node needs a peer id and two successor ids, or a bootstrap id.");
+                System.exit(1);
+            }
+            for (int i = 0; i < peer_ids.length; i++) {
+                int peer_id = Integer.parseInt(peer_ids[i]);
+                int first_succ_id = Integer.parseInt(first_succ_ids[i]);
+                int second_succ_id = Integer.parseInt(second_succ_ids[i]);
+                for (int id : new int[] { peer_id, first_succ_id, second_succ_id }) {
+                    if (!IdSpace.contains(id) || getPort(id) > 65535) {
+                        System.err.println("Peer id " + id + " must lie in [0, " + Math.min(IdSpace.SIZE,
+                                65536 - DEFAULT_PORT) + ").");
+                        System.exit(1);
+                    }
+                }
+                nodes.add(new cdht(peer_id, first_succ_id, second_succ_id, MSS, drop_prob, join));
+            }
+        } catch (NumberFormatException ex) {
+            System.err.println("Error parsing arguments.");
+            System.exit(1);
+        }
+        // Start the peers and all services.
+        Set<Integer> local_peers = new HashSet<Integer>();
+        for (cdht node : nodes) {
+            local_peers.add(node.getPeer());
+        }
+        for (cdht node : nodes) {
+            node.local_peers = local_peers;
+            node.initializeThreads();
+        }
+
+        // Start loop for reading in terminal input. Files are requested by the first virtual node, every node
+        // quits and prints its state.
+        cdht peer = nodes.get(0);
+        BufferedReader br = null;
+        while (!peer.shutdown) {
+            try {
+                br = new BufferedReader(new InputStreamReader(System.in));
+                String input_string = br.readLine();
+                for (cdht node : nodes) {
+                    // Metrics are shared by the whole process, print them once.
+                    if (node == peer || !(input_string.startsWith("request") || input_string.startsWith("stats"))) {
+                        node.parseUserInput(input_string);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println(e);
+            }
+        }
+    }
+
+    /**
+     * Initialises all threads that the peer has to run. A PingServer to respond to
+     * pings. A PingSender to send pings. A TCP server to receive graceful quit
+     * messages and file transfer requests. A TCP sender to send graceful quit
+     * messages and file transfer requests.
+     */
+    private void initializeThreads() {
+        Metrics.start(this.peer_id);
+
+        // Initiate Ping Server
+        this.pingServer = new PingServerUDP(this);
+        this.pingServer.start();
+
+        // Initiate the Ping Sender that probes every successor.
+        this.pingSender = new PingSenderUDP(this);
+
+        // Initiate TCP Server
+        this.tcpServer = new TCPServer(this);
+        this.tcpServer.start();
+
+        // Keep the finger table used to route lookups up to date.
+        this.fingers = new FingerTable(this);
+
+        if (this.joining) {
+            // Pinging and fixing fingers wait until the peer knows its successor.
+            int bootstrap = this.getFirstSuccessor();
+            TaskScope.newThread(() -> join(bootstrap), "Join", true).start();
+        } else {
+            this.pingSender.start();
+            this.fingers.start();
+        }
+    }
+
+    /**
+     * Asks the bootstrap peer to look up this peer's successor, again every JOIN_RETRY milliseconds until the
+     * answer arrives. The answer comes back as an FU message for finger JOIN_FINGER.
+     * 
+     * @param bootstrap any peer already in the ring.
+     */
+    private void join(int bootstrap) {
+        while (this.joining && !this.shutdown) {
+            System.out.println("Looking up my place in the ring through peer " + bootstrap + ".");
+            try {
+                this.connections.send(bootstrap, TCPmessageBeginning("FS") + " " + this.peer_id + " "
+                        + this.peer_id + " " + JOIN_FINGER + " 1");
+            } catch (IOException e) {
+                System.out.println("Peer " + bootstrap + " could not be reached.");
+            }
+            try {
+                Thread.sleep(JOIN_RETRY);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes the answer to the join lookup as the first successor and starts pinging it, which notifies it of
+     * this peer. Stabilization on both sides fills in the rest of the pointers.
+     * 
+     * @param successor the peer owning this peer's id.
+     */
+    private synchronized void joined(int successor) {
+        if (!this.joining) {
+            return;
+        }
+        if (successor == this.peer_id) {
+            System.out.println("Peer " + this.peer_id + " is already in the ring, pick another id.");
+            System.exit(1);
+        }
+        this.joining = false;
+        this.setFirstSuccessor(successor);
+        System.out.println("Joined the ring, my first successor is peer " + successor + ".");
+        this.pingSender.start();
+        this.fingers.start();
+    }
+
+    /**
+     * Updates the predecessors of the peer based on id. If this peer is the sender's
+     * first successor, update the first predecessor, if it is the second successor
+     * update the second predecessor. Peers further back are not tracked.
+     * 
+     * A first successor ping is also how a joining peer notifies this peer. The sender becomes the first
+     * predecessor only if it lies between the current one and this peer, or if the current one is suspected, dead
+     * or has gone quiet.
+     * A peer that has joined in between takes over the keys up to its id, which are offered to it.
+     * 
+     * @param id       represents the id of the new predecessor.
+     * @param position this peer's place in the sender's successor list.
+     */
+    public void updatePredecessors(int id, int position) {
+        if (position == 1) {
+            setSecondPredecessor(id);
+        } else if (position == 0) {
+            long now = System.currentTimeMillis();
+            RoutingState.Transition transition = updateRouting(routing -> {
+                int old = routing.first_pred;
+                if (old != -1 && id != old && FingerTable.inInterval(id, old, this.peer_id, false)) {
+                    return routing.withPredecessors(id, old);
+                } else if (id != old && old != -1 && now - this.first_pred_heard <= PREDECESSOR_TIMEOUT
+                        && !this.membership.isSuspected(old) && !this.membership.isDown(old)) {
+                    // A peer that has not stabilized yet still thinks we are its successor.
+                    return routing;
+                }
+                return routing.withPredecessors(id, routing.second_pred);
+            });
+            if (transition.after.first_pred == id) {
+                this.first_pred_heard = now;
+            }
+            // Only a join moves the old first predecessor back to second, a replaced one is dropped.
+            RoutingState before = transition.before;
+            RoutingState after = transition.after;
+            int old = before.first_pred;
+            if (old != -1 && after.first_pred != old && after.second_pred == old && before.second_pred != old) {
+                System.out.println(String.format("Peer %d has joined the ring, it is my first predecessor now.",
+                        id));
+                this.lookup_cache.joined(id);
+                this.transfers.fork(() -> offerKeys(old, id), "KeyHandoff");
+            }
+        }
+    }
+
+    /**
+     * Adopts the first successor's predecessor as the new first successor if it lies between the two, which is
+     * how the peer before a joining peer finds out about it.
+     * 
+     * @param successor the first successor.
+     * @param its_pred the first predecessor it reported, -1 if it knows none.
+     */
+    public void stabilize(int successor, int its_pred) {
+        if (its_pred == -1 || !FingerTable.inInterval(its_pred, this.peer_id, successor, false)
+                || this.membership.isDown(its_pred)) {
+            return;
+        }
+        RoutingState.Transition transition = updateRouting(routing -> routing.successors.get(0) != successor
+                ? routing : routing.withSuccessors(routing.successors.insert(its_pred)));
+        if (!transition.changed()) {
+            return;
+        }
+        System.out.println(String.format("Peer %d has joined the ring.", its_pred));
+        System.out.println(String.format("My first successor is now peer %d.", its_pred));
+        System.out.println(String.format("My second successor is now peer %d.",
+                transition.after.successors.get(1)));
+        this.lookup_cache.joined(its_pred);
+    }
+
+    /**
+     * Offers a peer that has joined as the first predecessor the files stored here whose keys it now owns.
+     * 
+     * @param old_pred the previous first predecessor.
+     * @param new_pred the joining peer.
+     */
+    private void offerKeys(int old_pred, int new_pred) {
+        List<Integer> files = new ArrayList<Integer>();
+        for (int file_name : FileSenderUDP.localFiles()) {
+            if (FingerTable.inInterval(IdSpace.key(file_name), old_pred, new_pred, true)) {
+                files.add(file_name);
+            }
+        }
+        for (int i = 0; i < files.size(); i += MAX_BATCH) {
+            List<Integer> batch = files.subList(i, Math.min(files.size(), i + MAX_BATCH));
+            sendTCPMessage(new_pred, createKeyMessage("KH", batch));
+        }
+        if (!files.isEmpty()) {
+            System.out.println(String.format("Offered %d files to peer %d.", files.size(), new_pred));
+        }
+    }
+
+    /**
+     * Asks the peer that offered us files for the ones missing here.
+     * 
+     * @param sender the peer handing the files over.
+     * @param files the files offered.
+     */
+    public void keysOffered(int sender, List<Integer> files) {
+        List<Integer> missing = new ArrayList<Integer>();
+        for (int file_name : files) {
+            if (FileSenderUDP.localCopy(file_name) == null && !this.pingServer.isReceiving(file_name)) {
+                missing.add(file_name);
+            }
+        }
+        System.out.println(String.format("Peer %d handed over %d files, %d of them are missing here.", sender,
+                files.size(), missing.size()));
+        if (!missing.isEmpty()) {
+            sendTCPMessage(sender, createKeyMessage("KR", missing));
+        }
+    }
+
+    /**
+     * Sends the files a joining peer asked for, one after another so the handoff does not crowd out the
+     * transfers that were requested.
+     * 
+     * @param receiver the joining peer.
+     * @param files
+     */
+    public void sendKeys(int receiver, List<Integer> files) {
+        this.transfers.fork(() -> {
+            for (int file_name : files) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                new FileSenderUDP(file_name, receiver, this.MSS, this.drop_prob, this.time, null).run();
+            }
+            System.out.println(String.format("Sent %d files to peer %d.", files.size(), receiver));
+        }, "KeyHandoff");
+    }
+
+    // =================OTHER UTILITY
+    // FUNCTIONS======================================//
+
+    /**
+     * Parses the user input and directs decision to either the graceful quit
+     * function or the file request function.
+     * 
+     * @param usr_input
+     */
+    private void parseUserInput(String usr_input) {
+
+        // Draw up some simple regex for parsing input.
+        String file_request_pattern_str = "request \\d{4}";
+        String quit_pattern_str = "quit";
+        String print_debug = "debug";
+        String print_stats = "stats";
+
+        Pattern file_request_pattern = Pattern.compile(file_request_pattern_str);
+        Pattern quit_pattern = Pattern.compile(quit_pattern_str);
+        Pattern debug_pattern = Pattern.compile(print_debug);
+        Pattern stats_pattern = Pattern.compile(print_stats);
+
+        Matcher file_matcher = file_request_pattern.matcher(usr_input);
+        Matcher quit_matcher = quit_pattern.matcher(usr_input);
+        Matcher debug_matcher = debug_pattern.matcher(usr_input);
+        Matcher stats_matcher = stats_pattern.matcher(usr_input);
+
+        // A peer still joining has nothing to route requests with, and nobody to tell when it quits.
+        if (this.joining && quit_matcher.find()) {
+            this.pingServer.shutdown();
+            this.tcpServer.shutdown();
+            this.shutdown = true;
+            return;
+        } else if (this.joining && file_matcher.find()) {
+            System.out.println("Still joining the ring, try again once it has a successor.");
+            return;
+        }
+
+        // FILE REQUEST INPUT MATCH
+        if (file_matcher.find()) {
+            String[] names = usr_input.trim().split("\\s+");
+            if (names.length > 2 || names[1].contains("-")) {
+                // Several files or a range of them, e.g. request 2012 2013 3000-3099.
+                batchRequest(names);
+                return;
+            }
+            // Grab the second element from the string split (the 4 numbers)
+            int file_name = Integer.parseInt(names[1]);
+
+            // Edge case for when peer requests a file of the same hash as its peer id,
+            // don't initiate any sending.
+            if (this.local_peers.contains(IdSpace.key(file_name))) {
+                System.out.println("File is already stored at this peer!");
+                return;
+            }
+
+            // Initiate file request procedure, telling the sender what we already hold from an interrupted
+            // download so it only sends the rest. Swarm downloads skip the saved ranges themselves.
+            RangeSet received = SWARM_SOURCES > 1 ? null : TransferSession.savedProgress(file_name);
+            System.out.println("File request message for " + file_name + " has been sent to my successor.");
+            int request_id = ThreadLocalRandom.current().nextInt();
+            this.lookup_started.put(lookupKey(request_id, file_name), System.nanoTime());
+            fileRequest(file_name, this.getPeer(), SWARM_SOURCES > 1 ? 1 : 0, 1, request_id,
+                    received == null ? null : received.largest(MAX_RESUME_RANGES));
+
+            // QUIT REQUEST INPUT MATCH
+        } else if (quit_matcher.find()) {
+
+            // Kill the ping sender and ping server.
+            this.pingSender.shutdown();
+            this.pingServer.shutdown();
+            this.fingers.shutdown();
+
+            // Send messages TCP messages that we are leaving the network.
+            RoutingState routing = this.routing.get();
+            this.gracefulQuit(routing, routing.first_pred);
+            this.gracefulQuit(routing, routing.second_pred);
+
+            // Stop the transfers still running, receivers resume them from another copy or when we return.
+            this.transfers.close(TRANSFER_STOP_TIMEOUT);
+
+            this.shutdown = true;
+
+            // MATCH FOR DEBUGGING
+        } else if (debug_matcher.find()) {
+            // Used to debug state information.
+            RoutingState routing = this.routing.get();
+            System.out.println(routing);
+            System.out.println("Successors: " + routing.successors + " (routing state version " + routing.version
+                    + ")");
+            System.out.println("Suspicion [peer:phi]: " + this.pingSender.describeSuspicion());
+            System.out.println("Members [peer:state]: " + this.membership);
+            System.out.println("Fingers [start:peer]: " + this.fingers);
+            System.out.println("RTT [peer:ms]: " + LatencyTable.describe());
+            System.out.println(String.format("Transfers running: %d (%s threads)", this.transfers.size(),
+                    TaskScope.VIRTUAL ? "virtual" : "platform"));
+            synchronized (this) {
+                System.out.println(String.format("Lookups: %d, average hops: %.2f, last lookup: %d hops",
+                        this.lookups, this.lookups == 0 ? 0.0 : (double) this.lookup_hops / this.lookups,
+                        this.last_lookup_hops));
+                System.out.println("Lookup cache: " + this.lookup_cache);
+            }
+
+            // MATCH FOR METRICS
+        } else if (stats_matcher.find()) {
+            System.out.print(Metrics.report());
+        }
+    }
+
+    /**
+     * Initiates a file request procedure for a file with given filename. The request goes straight to the first
+     * successor if it owns the file, otherwise it jumps to the closest finger preceding the file's hash. A peer
+     * requesting a file for itself sends the request directly to the owner if it is in the lookup cache.
+     * 
+     * @param hash hashed value of the filename.
+     * @param swarm 1 if the requesting peer wants to download from every peer holding a copy.
+     * @param hops number of hops the request will have taken when it arrives.
+     * @param request_id id the requesting peer gave the request, echoed back in the response.
+     * @param received ranges the requesting peer already holds, or null.
+     */
+    public void fileRequest(int file_name, int sending_peer, int swarm, int hops, int request_id,
+            RangeSet received) {
+        int hash = IdSpace.key(file_name);
+        // Third parameter = 1 => it is a query.
+        String file_request_msg = createFileRequest(file_name, sending_peer, 1, swarm, hops, request_id, received);
+        if (sending_peer == this.getPeer() && !successorHasFile(hash)) {
+            int owner = this.lookup_cache.get(hash);
+            if (owner != -1) {
+                try {
+                    this.connections.send(owner, createFileRequest(file_name, sending_peer, 1, swarm, hops,
+                            request_id, received, true));
+                    System.out.println("Peer " + owner + " is known to own file " + file_name
+                            + ", the request went straight to it.");
+                    return;
+                } catch (IOException e) {
+                    // The owner has gone, find the new one the long way.
+                    this.lookup_cache.unreachable(owner);
+                }
+            }
+        }
+        if (successorHasFile(hash)) {
+            sendTCPMessage(this.getFirstSuccessor(), file_request_msg);
+        } else {
+            routeTCPMessage(hash, file_request_msg);
+        }
+    }
+
+    /**
+     * Requests many files at once. The names are looked up in batches of up to MAX_BATCH, each of which walks the
+     * ring as a single FB message that splits up only where its keys head to different next hops.
+     * 
+     * A file named more than once, directly or by overlapping ranges, is looked up once.
+     * 
+     * @param names the request command, followed by file names and ranges of file names such as 3000-3099.
+     */
+    private void batchRequest(String[] names) {
+        Set<Integer> file_names = new LinkedHashSet<Integer>();
+        Set<Integer> stored = new HashSet<Integer>();
+        long named = 0;
+        try {
+            for (int i = 1; i < names.length; i++) {
+                String[] range = names[i].split("-");
+                int first = Integer.parseInt(range[0]);
+                int last = range.length > 1 ? Integer.parseInt(range[1]) : first;
+                named += (long) last - first + 1;
+                if (range.length > 2 || first > last || named > MAX_REQUEST_FILES) {
+                    throw new NumberFormatException();
+                }
+                // A long counter, so a range ending at Integer.MAX_VALUE still ends.
+                for (long file_name = first; file_name <= last; file_name++) {
+                    if (!this.local_peers.contains(IdSpace.key((int) file_name))) {
+                        file_names.add((int) file_name);
+                    } else if (stored.add((int) file_name)) {
+                        System.out.println("File " + file_name + " is already stored at this peer!");
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Files are requested as request [filenum] [filenum]... or request [first]-[last],"
+                    + " with first <= last and at most " + MAX_REQUEST_FILES + " files in all.");
+            return;
+        }
+        List<Integer> files = new ArrayList<Integer>(file_names);
+        for (int i = 0; i < files.size(); i += MAX_BATCH) {
+            List<Integer> batch = files.subList(i, Math.min(files.size(), i + MAX_BATCH));
+            int batch_id = ThreadLocalRandom.current().nextInt();
+            this.batches.put(batch_id, new BatchLookup(batch_id, batch.size()));
+            long now = System.nanoTime();
+            for (int file_name : batch) {
+                this.lookup_started.put(lookupKey(batch_id, file_name), now);
+            }
+            System.out.println(String.format("Batch %08x: request for %d files has been sent.", batch_id,
+                    batch.size()));
+            routeBatch(this.getPeer(), batch_id, 1, batch, new ArrayList<long[]>(), true);
+        }
+    }
+
+    /**
+     * Handles a batch lookup that has reached this peer. Files whose keys this peer owns are sent to the
+     * requester and answered, the rest travel on.
+     * 
+     * @param origin the peer that made the request.
+     * @param batch_id
+     * @param hops number of hops the batch took to get here.
+     * @param owned files whose keys this peer owns.
+     * @param pending files still to be looked up.
+     * @param resolved answers collected on the way, [file] [owner] [hops] [found] each.
+     */
+    public void processBatch(int origin, int batch_id, int hops, List<Integer> owned, List<Integer> pending,
+            List<long[]> resolved) {
+        int found = 0;
+        for (int file_name : owned) {
+            boolean has_file = FileSenderUDP.localCopy(file_name) != null;
+            if (has_file) {
+                initiateFileTransfer(origin, file_name, null);
+                recordCopy(file_name, origin);
+                found++;
+            }
+            resolved.add(new long[] { file_name, this.getPeer(), hops, has_file ? 1 : 0 });
+        }
+        if (!owned.isEmpty()) {
+            System.out.println(String.format("%d of %d files of batch %08x from peer %d are stored here.", found,
+                    owned.size(), batch_id, origin));
+        }
+        routeBatch(origin, batch_id, hops + 1, pending, resolved, false);
+    }
+
+    /**
+     * Sends every file of a batch on to its next hop, one FB message per hop. The answers collected so far go
+     * with the first message, and a branch with nothing left to look up returns its answers to the requester.
+     * 
+     * @param use_cache true at the requesting peer, which sends files whose owner it knows straight there.
+     */
+    private void routeBatch(int origin, int batch_id, int hops, List<Integer> files, List<long[]> resolved,
+            boolean use_cache) {
+        Map<Integer, List<Integer>> owned = new LinkedHashMap<Integer, List<Integer>>();
+        Map<Integer, List<Integer>> pending = new LinkedHashMap<Integer, List<Integer>>();
+        for (int file_name : files) {
+            int hash = IdSpace.key(file_name);
+            int owner = successorHasFile(hash) ? this.getFirstSuccessor()
+                    : use_cache ? this.lookup_cache.get(hash) : -1;
+            if (owner != -1) {
+                owned.computeIfAbsent(owner, k -> new ArrayList<Integer>()).add(file_name);
+            } else {
+                pending.computeIfAbsent(this.fingers.closestPrecedingFinger(hash), k -> new ArrayList<Integer>())
+                        .add(file_name);
+            }
+        }
+        Set<Integer> next_hops = new LinkedHashSet<Integer>(owned.keySet());
+        next_hops.addAll(pending.keySet());
+        if (next_hops.isEmpty()) {
+            returnBatch(origin, batch_id, hops, resolved);
+            return;
+        }
+        List<long[]> answers = resolved;
+        for (int next : next_hops) {
+            List<Integer> next_owned = owned.getOrDefault(next, List.of());
+            List<Integer> next_pending = pending.getOrDefault(next, List.of());
+            try {
+                this.connections.send(next, createBatchMessage("FB", origin, batch_id, hops, next_owned,
+                        next_pending, answers));
+                answers = List.of();
+            } catch (IOException e) {
+                if (next == this.getFirstSuccessor()) {
+                    // There is no way further round the ring until the successor list is repaired, the files
+                    // go back to the requester unresolved.
+                    System.out.println(String.format("Could not forward %d files of batch %08x: %s",
+                            next_owned.size() + next_pending.size(), batch_id, e.getMessage()));
+                    List<long[]> unresolved = new ArrayList<long[]>(answers);
+                    for (int file_name : next_owned) {
+                        unresolved.add(new long[] { file_name, -1, hops, 0 });
+                    }
+                    for (int file_name : next_pending) {
+                        unresolved.add(new long[] { file_name, -1, hops, 0 });
+                    }
+                    returnBatch(origin, batch_id, hops, unresolved);
+                    answers = List.of();
+                    continue;
+                }
+                // The hop is gone, look its files up again without it.
+                this.fingers.replace(next, this.getFirstSuccessor());
+                this.lookup_cache.unreachable(next);
+                List<Integer> retry = new ArrayList<Integer>(next_owned);
+                retry.addAll(next_pending);
+                routeBatch(origin, batch_id, hops, retry, answers, false);
+                answers = List.of();
+            }
+        }
+    }
+
+    /**
+     * Returns the answers collected by a branch of a batch lookup to the requester.
+     * 
+     * @param resolved [file] [owner] [hops] [found] for each file, owner -1 for a file that was not resolved.
+     */
+    private void returnBatch(int origin, int batch_id, int hops, List<long[]> resolved) {
+        if (origin == this.getPeer()) {
+            batchAnswered(batch_id, resolved);
+        } else {
+            sendTCPMessage(origin, createBatchMessage("FA", -1, batch_id, hops, List.of(), List.of(), resolved));
+        }
+    }
+
+    /**
+     * Records the answers returned by one branch of a batch lookup, reporting the batch once it is complete.
+     * 
+     * @param batch_id
+     * @param resolved [file] [owner] [hops] [found] for each file, owner -1 for a file that was not resolved.
+     */
+    public void batchAnswered(int batch_id, List<long[]> resolved) {
+        BatchLookup batch = this.batches.get(batch_id);
+        if (batch == null) {
+            return;
+        }
+        boolean complete = false;
+        for (long[] answer : resolved) {
+            if (answer[1] != -1) {
+                recordLookup(batch_id, (int) answer[0], (int) answer[1], (int) answer[2]);
+            } else {
+                this.lookup_started.remove(lookupKey(batch_id, (int) answer[0]));
+            }
+            complete = batch.add((int) answer[0], (int) answer[1], (int) answer[2], answer[3] == 1);
+        }
+        if (complete && this.batches.remove(batch_id) != null) {
+            System.out.println(batch.summary());
+        }
+    }
+
+    /**
+     * Records the hop count reported by the owner of a file this peer looked up, and remembers the owner.
+     * 
+     * @param request_id id of the single request, or of the batch, the lookup belongs to.
+     */
+    public synchronized void recordLookup(int request_id, int file_name, int owner, int hops) {
+        this.lookups++;
+        this.lookup_hops += hops;
+        this.last_lookup_hops = hops;
+        Metrics.LOOKUP_HOPS.record(hops);
+        Long started = this.lookup_started.remove(lookupKey(request_id, file_name));
+        if (started != null) {
+            Metrics.LOOKUP_LATENCY.record((System.nanoTime() - started) / 1000);
+        }
+        this.lookup_cache.put(IdSpace.key(file_name), owner, hops);
+    }
+
+    /**
+     * Looks up the successor of a finger's start on behalf of the fix-fingers thread.
+     * 
+     * @param finger index of the finger.
+     * @param start the finger's start.
+     */
+    public void findFingerSuccessor(int finger, int start) {
+        findSuccessor(this.getPeer(), start, finger, 1);
+    }
+
+    /**
+     * Answers a successor lookup if key falls between this peer and its first successor, otherwise passes it on
+     * to the closest preceding finger.
+     * 
+     * @param origin the peer that started the lookup.
+     * @param key the id being looked up.
+     * @param finger index of the origin's finger being fixed.
+     * @param hops number of hops taken so far.
+     */
+    public void findSuccessor(int origin, int key, int finger, int hops) {
+        int successor = this.getFirstSuccessor();
+        if (FingerTable.inInterval(key, this.getPeer(), successor, true)) {
+            if (origin == this.getPeer()) {
+                this.fingers.set(finger, successor);
+            } else {
+                sendTCPMessage(origin, TCPmessageBeginning("FU") + " " + finger + " " + successor + " " + hops);
+            }
+        } else {
+            routeTCPMessage(key, TCPmessageBeginning("FS") + " " + origin + " " + key + " " + finger + " "
+                    + (origin == this.getPeer() ? hops : hops + 1));
+        }
+    }
+
+    /**
+     * Stores the answer to one of this peer's finger lookups.
+     */
+    public void updateFinger(int finger, int id) {
+        if (finger == JOIN_FINGER) {
+            joined(id);
+        } else {
+            this.fingers.set(finger, id);
+        }
+    }
+
+    /**
+     * Replaces a peer that has left the network in the finger table.
+     */
+    public void removeFinger(int id, int replacement) {
+        this.fingers.replace(id, replacement);
+        this.lookup_cache.remove(id);
+        LatencyTable.remove(id);
+    }
+
+    /**
+     * Starts sending a file to the peer that requested it.
+     * 
+     * @param received ranges the requesting peer already holds, or null to send the whole file.
+     */
+    public void initiateFileTransfer(int sending_peer, int file_name, RangeSet received) {
+        FileSenderUDP fs = new FileSenderUDP(file_name, sending_peer, this.MSS, this.drop_prob, this.time,
+                received);
+        fs.start(this.transfers);
+    }
+
+    /**
+     * Starts downloading a file from every peer that holds a copy, once the owner has told us its size.
+     * 
+     * @param file_name
+     * @param file_len length of the file in bytes.
+     * @param holders the owner followed by other peers that may hold a copy.
+     */
+    public void startSwarm(int file_name, long file_len, List<Integer> holders) {
+        int session_id = ThreadLocalRandom.current().nextInt();
+        try {
+            TransferSession session = this.pingServer.openSession(session_id, file_name, file_len);
+            SwarmDownload swarm = new SwarmDownload(this, session, file_len, holders);
+            this.swarms.put(session_id, swarm);
+            swarm.start(this.transfers);
+        } catch (IOException e) {
+            System.out.println("Could not start downloading file " + file_name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Forgets a finished swarm download, abandoning its receive session if it did not complete.
+     * 
+     * @param session_id
+     * @param completed
+     */
+    public void endSwarm(int session_id, boolean completed) {
+        this.swarms.remove(session_id);
+        if (!completed) {
+            this.pingServer.closeSession(session_id);
+        }
+    }
+
+    /**
+     * Asks a source to send one chunk of a swarm download.
+     */
+    public void requestChunk(int source, int file_name, int session_id, long offset, long len) {
+        sendTCPMessage(source, createChunkMessage("FC", file_name, session_id, offset, len));
+    }
+
+    /**
+     * Sends a chunk of a file to a peer that is swarm downloading it, or tells the peer we cannot if we have no
+     * complete copy.
+     */
+    public void serveChunk(int requesting_peer, int file_name, int session_id, long offset, long len) {
+        if (FileSenderUDP.localCopy(file_name) == null || this.pingServer.isReceiving(file_name)) {
+            sendTCPMessage(requesting_peer, createChunkMessage("FN", file_name, session_id, offset, len));
+            return;
+        }
+        FileSenderUDP fs = new FileSenderUDP(file_name, requesting_peer, this.MSS, this.drop_prob, this.time,
+                session_id, offset, len);
+        fs.start(this.transfers);
+    }
+
+    /**
+     * Handles a source telling us it cannot serve a swarm download.
+     */
+    public void chunkUnavailable(int source, int session_id) {
+        SwarmDownload swarm = this.swarms.get(session_id);
+        if (swarm != null) {
+            swarm.sourceUnavailable(source);
+        }
+    }
+
+    /**
+     * Records that a peer has downloaded a copy of a file stored here.
+     */
+    public void recordCopy(int file_name, int holder) {
+        this.cached_by.computeIfAbsent(file_name, k -> ConcurrentHashMap.newKeySet()).add(holder);
+    }
+
+    /**
+     * Returns the peers a swarm download of a file stored here can use, at most SWARM_SOURCES of them: this peer,
+     * its successors and peers that downloaded a copy earlier.
+     */
+    public List<Integer> swarmHolders(int file_name) {
+        Set<Integer> holders = new LinkedHashSet<Integer>();
+        SuccessorList successors = this.routing.get().successors;
+        holders.add(this.getPeer());
+        holders.add(successors.get(0));
+        if (successors.get(1) != -1) {
+            holders.add(successors.get(1));
+        }
+        holders.addAll(this.cached_by.getOrDefault(file_name, Set.of()));
+        List<Integer> list = new ArrayList<Integer>(holders);
+        return list.subList(0, Math.min(list.size(), SWARM_SOURCES));
+    }
+
+    /**
+     * Sends a single line TCP message to the given peer.
+     * 
+     * @param receiver id of the peer.
+     * @param msg the message without its trailing newline.
+     */
+    public void sendTCPMessage(int receiver, String msg) {
+        try {
+            this.connections.send(receiver, msg);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends a message one step closer to the peer owning key: to the closest preceding finger, or to the first
+     * successor if that finger cannot be reached, in which case it is dropped from the finger table.
+     * 
+     * @param key a file hash or peer id.
+     * @param msg the message without its trailing newline.
+     */
+    private void routeTCPMessage(int key, String msg) {
+        int successor = this.getFirstSuccessor();
+        int next = this.fingers.closestPrecedingFinger(key);
+        if (next != successor) {
+            try {
+                this.connections.send(next, msg);
+                return;
+            } catch (IOException e) {
+                this.fingers.replace(next, successor);
+            }
+        }
+        sendTCPMessage(successor, msg);
+    }
+
+    public static String write_log_text(String event, long time, long seq_num, int num_bytes, long ack_num) {
+        return String.format("%-10s %-10s %-10s %-10s %-10s", event, time, seq_num, num_bytes, ack_num);
+    }
+
+    /**
+     * Formats an RTT estimator update for the transfer log. A negative sample marks a segment timeout, in which
+     * case rto is the backed off value used for its retransmission.
+     */
+    public static String write_rtt_log_text(String event, long time, double sample, double srtt, double rttvar,
+            long rto) {
+        return String.format("%-10s %-10s %-10.3f %-10.3f %-10.3f %-10s", event, time, sample, srtt, rttvar, rto);
+    }
+
+    /**
+     * Formats a congestion window cut for the transfer log, all sizes in bytes.
+     */
+    public static String write_cwnd_log_text(String event, long time, long cwnd, long ssthresh, long rwnd,
+            long in_flight) {
+        String threshold = ssthresh == Long.MAX_VALUE ? "-" : Long.toString(ssthresh);
+        return String.format("%-10s %-10s %-10s %-10s %-10s %-10s", event, time, cwnd, threshold, rwnd, in_flight);
+    }
+
+    /**
+     * Initiates a graceful quit procedure for this peer to the peer with ID
+     * receiver.
+     * 
+     * @param routing the routing state the peer quits with.
+     * @param receiver
+     */
+    private void gracefulQuit(RoutingState routing, int receiver) {
+        try {
+            String quitMessage = null;
+            if (receiver == routing.first_pred) {
+                // The first predecessor's successors become the quitting peer's two successors.
+                quitMessage = createGracefulQuitMessage(routing.successors.get(0), routing.successors.get(1));
+            } else if (receiver == routing.second_pred) {
+                // The second predecessor's successors become the quitting peer's first
+                // predecessor and first successor.
+                quitMessage = createGracefulQuitMessage(routing.first_pred, routing.successors.get(0));
+            } else {
+                System.out.println("Impossible Error just occurred.");
+                System.exit(1);
+            }
+            this.connections.send(receiver, quitMessage);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Handles when a successor has stopped answering pings for long enough to be suspected by its failure
+     * detector and is assumed dead. It is dropped from the successor list and the successors after it move up, the
+     * ping sender then refills the list from the new first successor.
+     * 
+     * @param id the dead successor.
+     */
+    public void handleDeadPeer(int id) {
+        if (dropSuccessor(id, String.format("Peer %d is no longer alive.", id))) {
+            this.membership.announce(Membership.DEAD, id);
+        }
+    }
+
+    /**
+     * Acts on the membership updates piggybacked on a ping or ping response. A successor reported suspected or
+     * dead is checked by the ping sender before it is dropped, while a peer that has left is dropped straight
+     * away since it said so itself.
+     * 
+     * @param updates
+     */
+    public void applyMembership(String updates) {
+        for (Membership.Update update : this.membership.apply(updates)) {
+            int id = update.peer_id;
+            if (this.local_peers.contains(id)) {
+                continue;
+            }
+            boolean successor = this.routing.get().successors.indexOf(id) >= 0;
+            if (update.type == Membership.LEAVE) {
+                if (!dropSuccessor(id, String.format("Peer %d has left the network.", id))) {
+                    forgetPeer(id);
+                }
+            } else if (successor && (update.type == Membership.SUSPECT || update.type == Membership.DEAD)
+                    && this.pingSender != null) {
+                this.pingSender.suspect(id);
+            } else if (update.type == Membership.DEAD) {
+                forgetPeer(id);
+            } else if (update.type == Membership.JOIN) {
+                // Lookups cached before the peer joined may now belong to it.
+                this.lookup_cache.joined(id);
+            }
+        }
+    }
+
+    /**
+     * Records and spreads a change this peer has found out about another peer.
+     * 
+     * @param type one of the Membership update types.
+     * @param id
+     */
+    public void announceMember(char type, int id) {
+        this.membership.announce(type, id);
+    }
+
+    /**
+     * Returns the membership updates to piggyback on the next ping or ping response.
+     */
+    public String piggyback() {
+        return this.membership.piggyback();
+    }
+
+    /**
+     * Pings a peer on behalf of another peer that suspects it.
+     * 
+     * @param id the suspected peer.
+     * @param requester address of the requesting peer's ping sender.
+     * @param seq sequence number to relay the response with.
+     */
+    public void relayPing(int id, SocketAddress requester, int seq) {
+        this.pingSender.relay(id, requester, seq);
+    }
+
+    /**
+     * Drops a peer from the successor list, the successors after it move up.
+     * 
+     * @param id
+     * @param reason printed when the peer was a successor.
+     * @return true if the peer was a successor.
+     */
+    private boolean dropSuccessor(int id, String reason) {
+        RoutingState.Transition transition = updateRouting(routing -> routing.withSuccessors(
+                routing.successors.remove(id)));
+        if (!transition.changed()) {
+            return false;
+        }
+        int index = transition.before.successors.indexOf(id);
+        SuccessorList successors = transition.after.successors;
+        // Print messages to stdout.
+        System.out.println(reason);
+        if (index == 0) {
+            System.out.println(String.format("My first successor is now peer %d.", successors.get(0)));
+        }
+        if (index <= 1 && successors.get(1) != -1) {
+            System.out.println(String.format("My second successor is now peer %d.", successors.get(1)));
+        }
+        forgetPeer(id);
+        return true;
+    }
+
+    /**
+     * Forgets everything known about a peer that has left the ring, fingers pointing at it move on to the first
+     * successor until they are fixed.
+     */
+    private void forgetPeer(int id) {
+        updateRouting(routing -> routing.first_pred != id ? routing
+                : routing.withPredecessors(-1, routing.second_pred));
+        this.connections.close(id);
+        this.fingers.replace(id, this.getFirstSuccessor());
+        this.lookup_cache.remove(id);
+        LatencyTable.remove(id);
+    }
+
+    /**
+     * Rebuilds the successor list from a ping response of the first successor, which carries its own list.
+     * 
+     * @param response the responding peer's id followed by its successors.
+     */
+    public void refreshSuccessors(int[] response) {
+        int[] its_successors = Arrays.copyOfRange(response, 1, response.length);
+        RoutingState.Transition transition = updateRouting(routing -> routing.withSuccessors(
+                routing.successors.refresh(response[0], its_successors)));
+        int second = transition.after.successors.get(1);
+        if (second != transition.before.successors.get(1) && second != -1) {
+            System.out.println("My second successor is now peer " + second + ".");
+        }
+    }
+
+    /**
+     * Replaces the routing state with the result of change, retrying on the latest state if another thread
+     * replaced it first. Change may therefore run more than once and must not do anything but compute the new
+     * state, which it returns unchanged if there is nothing to do.
+     * 
+     * @param change computes the new state from the current one.
+     * @return the state change was applied to and the state it made.
+     */
+    private RoutingState.Transition updateRouting(UnaryOperator<RoutingState> change) {
+        while (true) {
+            RoutingState before = this.routing.get();
+            RoutingState after = change.apply(before);
+            if (after == before || this.routing.compareAndSet(before, after)) {
+                return new RoutingState.Transition(before, after);
+            }
+        }
+    }
+
+    //================TCP PROTOCOL MESSAGE FORMAT=============================//
+    /*
+     * [QUERY TYPE] [SENDING PEER ID] [PAYLOAD FIELD 1] [PAYLOAD FIELD 2] [PAYLOAD FIELD 3]
+     * QUERY TYPE: {GQ: 'Graceful Quit', "FR": 'File Request'}
+     * SENDING PEER ID: {The id of the sender}
+     * PAYLOAD: {GQ: '[receivers nbew SUCC1] [receivers new SUCC2] [QUIT FLAG = 1 => if this peer wants to quit]', 
+     *           FR: '[FILE NAME] [FLAG => true if successor has the file.] [QUERY FLAG = 1 if query]
+     *                [SWARM FLAG = 1 if the requester wants to swarm download] [HOPS] [REQUEST ID]',
+     *                The requester picks the request id, the response echoes it.
+     *                A query may append '[COUNT] [START] [END]...' listing ranges the requester already holds.
+     *                A swarm response appends '[FILE SIZE] [HOLDER ID]...' listing peers that may hold a copy.
+     *           FC: '[FILE NAME] [SESSION ID] [OFFSET] [LENGTH]' asks a holder to send one chunk of a file,
+     *           FN: '[FILE NAME] [SESSION ID] [OFFSET] [LENGTH]' replies that the holder has no copy,
+     *           FS: '[ORIGIN] [KEY] [FINGER] [HOPS]' looks up the successor of KEY for finger FINGER of ORIGIN,
+     *           FU: '[FINGER] [SUCCESSOR] [HOPS]' answers a lookup, the sender is the key's predecessor.
+     *           FB: '[BATCH ID] [HOPS] [OWNED COUNT] [PENDING COUNT] [RESOLVED COUNT] [OWNED FILE]...
+     *                [PENDING FILE]... [FILE] [OWNER] [HOPS] [FOUND]...' carries a batch lookup, the sending peer
+     *                id is the requester's. The receiver owns the owned files and looks up the pending ones.
+     *           FA: same fields as FB with no owned or pending files, returns the answers to the requester.
+     *           KH: '[COUNT] [FILE NAME]...' offers a peer that has joined as our predecessor the files it now owns,
+     *           KR: '[COUNT] [FILE NAME]...' asks for the offered files missing at the joined peer.
+     *           A joining peer sends FS with its own id as the key and FINGER -1, the FU answer is its successor.
+     *          } 
+     */
+
+    //================TCP MESSAGE FUNCTIONS==================================//
+    
+    /**
+     * Creates a file request message for the desired filename.
+     * 
+     * @param file_name integer name of the file.
+     * @param sending_peer id of the peer who sent the query.
+     * @param query flag for telling whether the message is a query or response.
+     * @param swarm flag for telling whether the requester wants to swarm download.
+     * @param hops number of hops the message will have taken when it arrives.
+     * @param request_id id the requester gave the request.
+     * @param received ranges the requester already holds, appended as [count] [start] [end]..., or null.
+     * @return
+     */
+    private String createFileRequest(int file_name, int sending_peer, int query, int swarm, int hops,
+            int request_id, RangeSet received) {
+        // Computes the hash of the filename and checks if the successor has the file.
+        return createFileRequest(file_name, sending_peer, query, swarm, hops, request_id, received,
+                successorHasFile(IdSpace.key(file_name)));
+    }
+
+    /**
+     * Creates a file request message for a peer known to have, or not to have, the file.
+     * 
+     * @param has_file true if the receiver of the message owns the file.
+     */
+    private String createFileRequest(int file_name, int sending_peer, int query, int swarm, int hops,
+            int request_id, RangeSet received, boolean has_file) {
+        int val = has_file ? 1 : 0;
+        // Constructs the TCP message in format above.
+        StringBuilder msg = new StringBuilder("FR " + sending_peer + " " + file_name + " " + val + " " + query + " "
+                + swarm + " " + hops + " " + request_id);
+        if (received != null) {
+            msg.append(" ").append(received.size());
+            for (long[] range : received.ranges()) {
+                msg.append(" ").append(range[0]).append(" ").append(range[1]);
+            }
+        }
+        return msg.toString();
+    }
+
+    /**
+     * Creates a batch lookup (FB) or batch answer (FA) message.
+     * 
+     * @param origin the requesting peer, the sender of an FA message puts its own id here.
+     * @param owned files the receiver owns.
+     * @param pending files the receiver has to look up further.
+     * @param resolved answers so far, [file] [owner] [hops] [found] each.
+     */
+    private String createBatchMessage(String type, int origin, int batch_id, int hops, List<Integer> owned,
+            List<Integer> pending, List<long[]> resolved) {
+        StringBuilder msg = new StringBuilder(type + " " + (origin == -1 ? this.getPeer() : origin) + " " + batch_id
+                + " " + hops + " " + owned.size() + " " + pending.size() + " " + resolved.size());
+        for (int file_name : owned) {
+            msg.append(" ").append(file_name);
+        }
+        for (int file_name : pending) {
+            msg.append(" ").append(file_name);
+        }
+        for (long[] answer : resolved) {
+            msg.append(" ").append(answer[0]).append(" ").append(answer[1]).append(" ").append(answer[2])
+                    .append(" ").append(answer[3]);
+        }
+        return msg.toString();
+    }
+
+    /**
+     * Creates a chunk request (FC) or chunk unavailable (FN) message for a swarm download.
+     */
+    private String createChunkMessage(String type, int file_name, int session_id, long offset, long len) {
+        return TCPmessageBeginning(type) + " " + file_name + " " + session_id + " " + offset + " " + len;
+    }
+
+    /**
+     * Creates a key handoff offer (KH) or request (KR) message.
+     */
+    private String createKeyMessage(String type, List<Integer> files) {
+        StringBuilder msg = new StringBuilder(TCPmessageBeginning(type) + " " + files.size());
+        for (int file_name : files) {
+            msg.append(" ").append(file_name);
+        }
+        return msg.toString();
+    }
+
+    /**
+     * Creates a TCP protocol message for graceful quitting. 
+     * [GQ] [sending_peer] [first_id] [second_id] [query_flag = 1 => I want to leave]
+     * @param first_id new first successor
+     * @param second_id new second successor.
+     * @return
+     */
+    private String createGracefulQuitMessage(int first_id, int second_id) {
+        String payload = Integer.toString(first_id) + " " + Integer.toString(second_id) + " " + 1;
+        return TCPmessageBeginning("GQ") + " " + payload;
+    }
+
+    /**
+     * Helper method for producing the beginning of a TCP message header.
+     * @param type
+     * @return First two fields of a TCP message.
+     */
+    private String TCPmessageBeginning(String type) {
+        return type + " " + Integer.toString(this.peer_id);
+    }
+
+    // =====================STATIC HELPER FUNCTIONS===========================//
+
+    /**
+     * Returns UDP Port for given peer_id
+     * @param peer_id
+     * @return port number for that peer_id
+     */
+    public static int getPort(int peer_id) {
+        return DEFAULT_PORT + peer_id;
+    }
+
+    /**
+     * Returns the key the start time of a lookup is kept under in lookup_started.
+     * @param request_id id of the single request or of the batch.
+     * @param file_name
+     * @return the request id in the high half and the file name in the low half.
+     */
+    private static long lookupKey(int request_id, int file_name) {
+        return ((long) request_id << 32) | (file_name & 0xffffffffL);
+    }
+
+    /**
+     * Returns true if this peer's successor has the file. 
+     * @param hash
+     * @return boolean.
+     */
+    public boolean successorHasFile(int hash) {
+        /**
+         * The successor owns every key after this peer up to and including its own id, wrapping around the
+         * top of the identifier space.
+         * 
+         * E.g peer = 1 hash = 3 successor = 3. => peer 3 owns it.
+         * E.g peer = 15 hash = 220 successor = 1. => peer 1 owns it.
+         * E.g peer = 15 hash = 1 successor = 1. => peer 1 owns it.
+         */
+        return FingerTable.inInterval(hash, this.getPeer(), this.getFirstSuccessor(), true);
+    }
+
+    //========================GETTER METHODS===============================//
+    
+    /**
+     * Gets the first successor of the peer to the given id.
+     * @return
+     */
+    public int getFirstSuccessor() {
+        return this.routing.get().successors.get(0);
+    }
+
+    /**
+     * Gets the second successor of the peer to the given id.
+     * @return the second successor, or -1 in a ring of two peers.
+     */
+    public int getSecondSuccessor() {
+        return this.routing.get().successors.get(1);
+    }
+
+    /**
+     * Gets every successor in the successor list, nearest first.
+     * @return
+     */
+    public int[] getSuccessors() {
+        return this.routing.get().successors.toArray();
+    }
+
+    /**
+     * Gets the distinct peers in the finger table.
+     * @return
+     */
+    public int[] getFingers() {
+        return this.fingers.peers();
+    }
+
+    /**
+     * Gets a consistent snapshot of the successors and predecessors.
+     * @return
+     */
+    public RoutingState getRoutingState() {
+        return this.routing.get();
+    }
+
+    /**
+     * Gets the first successor of the peer to the given id.
+     * @return
+     */
+    public int getFirstPredecessor() {
+        return this.routing.get().first_pred;
+    }
+
+    /**
+     * Gets the second successor of the peer to the given id.
+     * @return
+     */
+    public int getSecondPredecessor() {
+        return this.routing.get().second_pred;
+    }
+    
+    /**
+     * Gets the peer id of the peer.
+     * @return
+     */
+    public int getPeer() {
+        return this.peer_id;
+    }
+
+    /**
+     * Gets the MSS of the peer.
+     * @return
+     */
+    public int getMSS() {
+        return this.MSS;
+    }
+
+    //=======================SETTER METHODS============================//
+
+    /**
+     * Sets the first predecessor of the peer to the given id.
+     * @param id
+     */
+    public void setFirstPredecessor(int id) {
+        updateRouting(routing -> routing.withPredecessors(id, routing.second_pred));
+    }
+
+    /**
+     * Sets the second predecessor of the peer to the given id.
+     * @param id
+     */
+    public void setSecondPredecessor(int id) {
+        updateRouting(routing -> routing.withSecondPredecessor(id));
+    }
+
+    /**
+     * Sets the first successor of the peer to the given id.
+     * @param id
+     */
+    public void setFirstSuccessor(int id) {
+        updateRouting(routing -> routing.withSuccessors(routing.successors.set(0, id)));
+    }
+
+    /**
+     * Sets the second successor of the peer to the given id.
+     * @param id
+     */
+    public void setSecondSuccessor(int id) {
+        updateRouting(routing -> routing.withSuccessors(routing.successors.set(1, id)));
+    }
+
+    /**
+     * Sets both successors of the peer in one step.
+     * @param first_id
+     * @param second_id
+     */
+    public void setSuccessors(int first_id, int second_id) {
+        updateRouting(routing -> routing.withSuccessors(routing.successors.set(0, first_id).set(1, second_id)));
+    }
+
+}